@@ -1,54 +1,58 @@
 package com.nesposi3;
 
-import com.nesposi3.Utils.BoundedLinkedHashMap;
-import com.nesposi3.Utils.BTreeUtils;
-
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Consumer;
 
 import static com.nesposi3.Utils.BTreeUtils.*;
 
 /**
  * A persistent, file-based BTree with IOCache
+ * The underlying file is held open by a PageStore until close() is called.
+ * The first page of the file is a BTreeHeader recording the degree, page size and root of the tree
  */
-public class BTree {
-    private Node root;
-    private BoundedLinkedHashMap<Long, Byte[]> cache;
+public class BTree implements Closeable {
+    private BTreeHeader header;
+    private boolean headerDirty;
+    private int t;
+    private int pageSize;
+    private BufferPool pool;
+    private int fileId;
     private String fileName;
+    private PageStore store;
+    // Only set for trees opened with openReadOnly
+    private MappedByteBuffer mapped;
+    private NodeView view;
 
     /**
      * This method checks if the requested node is in cache, or if not, on disk.
      *
      * @param address The address to look at
      * @return The node at said address, or null if it does not exist
-     * @throws IOException IOException represents a fatal error during execution, should lead to program shutdown
      */
     private Node readNodeFromFile(long address) {
-        if (cache.containsValue(address)) {
-            // This node is cached
-            return new Node(cache.get(address));
-        }
-        File f = new File(this.fileName);
-        try {
-            if (f.exists()) {
-                RandomAccessFile btreeFile = new RandomAccessFile(f, "rw");
-                btreeFile.seek(address);
-                byte[] nodeBytes = new byte[BLOCK_SIZE];
-                btreeFile.read(nodeBytes);
-                Node n = new Node(nodeBytes);
-                cache.put(n.address, BTreeUtils.fromPrimitiveBytes(nodeBytes));
-                btreeFile.close();
-                return n;
-
-            } else {
-                //If you try to read an empty file
+        if (mapped != null) {
+            if (address >= mapped.capacity()) {
                 return null;
             }
+            return view.wrap(mapped, (int) address).toNode(address);
+        }
+        if (address >= store.size()) {
+            //If you try to read past the end of the file
+            return null;
+        }
+        try {
+            byte[] nodeBytes = new byte[pageSize];
+            pool.read(fileId, address, nodeBytes);
+            return new Node(t, address, nodeBytes);
         } catch (IOException ioe) {
             ioe.printStackTrace();
             return null;
@@ -57,77 +61,378 @@ public class BTree {
     }
 
     /**
-     * Writes a node to disk and cache
+     * Writes a node to the buffer pool, it reaches disk when evicted or when the tree is flushed
      *
-     * @param n The node to write to disk/cache
+     * @param n The node to write
      * @throws IOException Represents fatal error in execution, should cause shutdown
      */
     private void writeNodeToFile(Node n) throws IOException {
-        long address = n.address;
-        byte[] nodeBytes = n.toBytes();
-        if (cache.containsKey(address)) {
-            // Need to update cache
-            cache.remove(address);
-            cache.put(address, BTreeUtils.fromPrimitiveBytes(nodeBytes));
+        if (mapped != null) {
+            throw new IllegalStateException(fileName + " was opened read only");
         }
-        File f = new File(this.fileName);
-        RandomAccessFile btreeFile = new RandomAccessFile(f, "rw");
-        btreeFile.seek(address);
-        btreeFile.write(nodeBytes);
+        pool.write(fileId, n.address, n.toBytes(pageSize));
     }
 
+    /**
+     * Opens a tree, creating it with the default degree and page size if it does not exist
+     * @param fileName path of the tree file
+     * @throws IOException if the file can not be opened or is not a BTree
+     */
     public BTree(String fileName) throws IOException {
+        this(fileName, T, BLOCK_SIZE, null);
+    }
+
+    /**
+     * Opens a tree, creating it with the given degree and page size if it does not exist.
+     * An existing tree keeps the degree and page size recorded in its header
+     * @param fileName path of the tree file
+     * @param t minimum degree of a new tree
+     * @param pageSize page size of a new tree
+     * @throws IOException if the file can not be opened or is not a BTree
+     */
+    public BTree(String fileName, int t, int pageSize) throws IOException {
+        this(fileName, t, pageSize, null);
+    }
+
+    /**
+     * Opens or creates a tree whose pages are cached in the given pool.
+     * A new tree gets the default degree and the pool's page size
+     * @param fileName path of the tree file
+     * @param pool the pool caching this tree's pages
+     * @throws IOException if the file can not be opened or is not a BTree
+     */
+    public BTree(String fileName, BufferPool pool) throws IOException {
+        this(fileName, T, pool.getPageSize(), pool);
+    }
+
+    private BTree(String fileName, int t, int pageSize, BufferPool pool) throws IOException {
         this.fileName = fileName;
-        this.cache = new BoundedLinkedHashMap<>(CACHE_MAX_SIZE);
-        File f = new File(this.fileName);
-        if (f.exists()) {
-            RandomAccessFile btreeFile = new RandomAccessFile(this.fileName, "rw");
-            //File exists, read root node and set as root
-            btreeFile.seek(0);
-            byte[] nodeBytes = new byte[BLOCK_SIZE];
-            btreeFile.read(nodeBytes);
-            btreeFile.close();
-            Node initial = new Node(nodeBytes);
-            this.root = initial;
-        } else {
-            //File doesn't already exist, create and initialize root
-            f.createNewFile();
-            RandomAccessFile btreeFile = new RandomAccessFile(f, "rw");
-            btreeFile.seek(0);
-            Node initial = new Node();
-            byte[] initialBytes = initial.toBytes();
-            btreeFile.write(initialBytes);
-            btreeFile.close();
-            this.root = initial;
+        FileChannel channel = PageStore.open(fileName);
+        boolean created = false;
+        try {
+            if (channel.size() == 0) {
+                this.header = new BTreeHeader(t, pageSize);
+                created = true;
+            } else {
+                this.header = BTreeHeader.read(channel);
+            }
+            setLayout();
+            this.store = new PageStore(channel, this.pageSize);
+            this.pool = pool != null ? pool : BufferPool.shared(this.pageSize);
+            // Fails if the pool's pages are not the size of this tree's
+            this.fileId = this.pool.register(store);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (created) {
+            //File is empty, write the header and an empty root leaf
+            Node initial = new Node(this.t);
+            initial.address = header.rootAddress;
+            store.writePage(0, header.toBytes());
+            store.writePage(initial.address, initial.toBytes(this.pageSize));
+        }
+        if (header.sumOfSquares == BTreeHeader.UNKNOWN) {
+            recomputeSumOfSquares();
+            headerDirty = true;
+        }
+    }
+
+    /**
+     * Copies the degree and page size out of the header
+     */
+    private void setLayout() {
+        this.t = header.t;
+        this.pageSize = header.pageSize;
+        this.view = new NodeView(t);
+    }
+
+    /**
+     * @return the header of this tree, changes to it are not persisted
+     */
+    public BTreeHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Opens a finished tree read only by memory mapping the whole file.
+     * Nodes are decoded straight from the mapping, so scans are served from the page cache
+     *
+     * @param fileName path of an existing tree
+     * @return the read only tree
+     * @throws IOException if the file can not be mapped
+     */
+    public static BTree openReadOnly(String fileName) throws IOException {
+        return new BTree(fileName, true);
+    }
+
+    private BTree(String fileName, boolean readOnly) throws IOException {
+        this.fileName = fileName;
+        try (FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        this.header = new BTreeHeader(mapped.duplicate());
+        setLayout();
+        if (header.sumOfSquares == BTreeHeader.UNKNOWN) {
+            recomputeSumOfSquares();
+        }
+    }
+
+    /**
+     * Fills in the sum of squares of a file written before the header held it
+     */
+    private void recomputeSumOfSquares() {
+        long[] sum = new long[1];
+        scanPages(node -> {
+            for (int i = 0; i < node.numKeys(); i++) {
+                long freq = node.frequency(i);
+                sum[0] += freq * freq;
+            }
+        });
+        header.sumOfSquares = sum[0];
+    }
+
+    /**
+     * Builds a tree bottom up from keys that are already sorted, replacing any existing file.
+     * Uses the default fill factor, degree and page size
+     *
+     * @see #bulkLoad(String, long[], int[], double, int, int, TermHasher)
+     */
+    public static BTree bulkLoad(String fileName, long[] sortedKeys, int[] freqs) throws IOException {
+        return bulkLoad(fileName, sortedKeys, freqs, DEFAULT_FILL_FACTOR, T, BLOCK_SIZE);
+    }
+
+    /**
+     * Builds a tree bottom up from keys that are already sorted, replacing any existing file.
+     * Uses the default fill factor, degree and page size
+     *
+     * @param hasher the hasher the keys came from, recorded in the header
+     * @see #bulkLoad(String, long[], int[], double, int, int, TermHasher)
+     */
+    public static BTree bulkLoad(String fileName, long[] sortedKeys, int[] freqs, TermHasher hasher) throws IOException {
+        return bulkLoad(fileName, sortedKeys, freqs, DEFAULT_FILL_FACTOR, T, BLOCK_SIZE, hasher);
+    }
+
+    /**
+     * Builds a tree bottom up from keys that are already sorted, replacing any existing file.
+     * Uses the default degree and page size
+     *
+     * @see #bulkLoad(String, long[], int[], double, int, int, TermHasher)
+     */
+    public static BTree bulkLoad(String fileName, long[] sortedKeys, int[] freqs, double fillFactor) throws IOException {
+        return bulkLoad(fileName, sortedKeys, freqs, fillFactor, T, BLOCK_SIZE);
+    }
+
+    /**
+     * Builds a tree bottom up from keys that are already sorted, replacing any existing file.
+     * Records the default hasher
+     *
+     * @see #bulkLoad(String, long[], int[], double, int, int, TermHasher)
+     */
+    public static BTree bulkLoad(String fileName, long[] sortedKeys, int[] freqs, double fillFactor,
+                                 int t, int pageSize) throws IOException {
+        return bulkLoad(fileName, sortedKeys, freqs, fillFactor, t, pageSize, TermHasher.defaultHasher());
+    }
+
+    /**
+     * Builds a tree bottom up from keys that are already sorted, replacing any existing file.
+     * The header and every node are written exactly once, in address order, so the whole build is one
+     * sequential write. Leaves come first and the root is the last page.
+     *
+     * @param fileName path of the tree file
+     * @param sortedKeys distinct keys in ascending order
+     * @param freqs frequency of each key
+     * @param fillFactor fraction of each node's keys to fill, nodes never hold fewer than t-1 keys
+     * @param t minimum degree of the tree
+     * @param pageSize size of every page
+     * @param hasher the hasher the keys came from, recorded in the header
+     * @return the finished tree, opened for reading and writing
+     * @throws IOException if the file can not be written
+     */
+    public static BTree bulkLoad(String fileName, long[] sortedKeys, int[] freqs, double fillFactor,
+                                 int t, int pageSize, TermHasher hasher) throws IOException {
+        BTreeHeader header = new BTreeHeader(t, pageSize);
+        header.termHasher = hasher.id();
+        int maxKeys = 2 * t - 1;
+        if (sortedKeys.length != freqs.length) {
+            throw new IllegalArgumentException("Got " + sortedKeys.length + " keys but " + freqs.length + " frequencies");
+        }
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i - 1] >= sortedKeys[i]) {
+                throw new IllegalArgumentException("Keys must be distinct and sorted, see index " + i);
+            }
+        }
+        int target = Math.max(t - 1, Math.min(maxKeys, (int) Math.round(maxKeys * fillFactor)));
+        // Plan how many keys each node of each level gets, leaves first
+        List<int[]> levels = new ArrayList<>();
+        int n = sortedKeys.length;
+        while (n > maxKeys) {
+            int[] counts = partition(n, target, t);
+            levels.add(counts);
+            n = counts.length - 1;
         }
+        levels.add(new int[]{n});
+        // Assign addresses level by level after the header page, which leaves the root last
+        long[][] addresses = new long[levels.size()][];
+        long next = pageSize;
+        for (int l = 0; l < levels.size(); l++) {
+            addresses[l] = new long[levels.get(l).length];
+            for (int j = 0; j < addresses[l].length; j++) {
+                addresses[l][j] = next;
+                next += pageSize;
+            }
+        }
+        header.rootAddress = addresses[levels.size() - 1][0];
+        header.keyCount = sortedKeys.length;
+        for (int freq : freqs) {
+            header.recordChange(0, freq);
+        }
+        try (PageStore store = new PageStore(fileName, pageSize)) {
+            store.truncate();
+            store.writePage(0, header.toBytes());
+            long[] keys = sortedKeys;
+            int[] frequencies = freqs;
+            for (int l = 0; l < levels.size(); l++) {
+                int[] counts = levels.get(l);
+                long[] upKeys = new long[counts.length - 1];
+                int[] upFrequencies = new int[counts.length - 1];
+                int src = 0;
+                int child = 0;
+                for (int j = 0; j < counts.length; j++) {
+                    Node node = new Node(t);
+                    node.address = addresses[l][j];
+                    node.numKeys = counts[j];
+                    System.arraycopy(keys, src, node.keys, 0, counts[j]);
+                    System.arraycopy(frequencies, src, node.frequencies, 0, counts[j]);
+                    src += counts[j];
+                    if (l > 0) {
+                        node.leaf = false;
+                        for (int i = 0; i <= counts[j]; i++) {
+                            node.children[i] = addresses[l - 1][child++];
+                        }
+                    }
+                    if (j < counts.length - 1) {
+                        // The key between two nodes moves up a level
+                        upKeys[j] = keys[src];
+                        upFrequencies[j] = frequencies[src];
+                        src++;
+                    }
+                    store.writePage(node.address, node.toBytes(pageSize));
+                }
+                keys = upKeys;
+                frequencies = upFrequencies;
+            }
+        }
+        return new BTree(fileName, t, pageSize);
+    }
 
+    /**
+     * Splits n keys into nodes separated by one key each, as close to target keys per node as
+     * possible while keeping every node between t-1 and 2t-1 keys
+     *
+     * @return the number of keys in each node
+     */
+    private static int[] partition(int n, int target, int t) {
+        // m nodes hold n-(m-1) keys, so the average node holds (n+1)/m - 1 keys
+        int nodes = (n + 1 + target) / (target + 1);
+        nodes = Math.max(nodes, (n + 2 * t - 1) / (2 * t));
+        nodes = Math.min(nodes, (n + 1) / t);
+        int keysInNodes = n - (nodes - 1);
+        int[] counts = new int[nodes];
+        for (int j = 0; j < nodes; j++) {
+            counts[j] = keysInNodes / nodes + (j < keysInNodes % nodes ? 1 : 0);
+        }
+        return counts;
     }
 
     private long getNewAddress() {
+        return store.allocate();
+    }
+
+    /**
+     * Writes the header and all of this tree's dirty pooled pages to disk
+     * @throws IOException on a failed write
+     */
+    public void flush() throws IOException {
+        if (pool != null) {
+            writeHeader();
+            pool.flush(fileId);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        if (headerDirty) {
+            pool.write(fileId, 0, header.toBytes());
+            headerDirty = false;
+        }
+    }
+
+    /**
+     * @return the pool caching this tree's pages, or null for a read only tree
+     */
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Writes back and drops this tree's pooled pages and releases its file handle
+     * @throws IOException if the pages can not be written or the handle can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (store != null) {
+            try {
+                writeHeader();
+                pool.unregister(fileId);
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Visits every node page of the file in address order.
+     * Every page of a tree is a live node, so one sequential pass sees every key.
+     * In read write mode each page is pinned in the pool while it is visited
+     *
+     * @param consumer receives a view of each node, only valid during the call
+     */
+    private void scanPages(Consumer<NodeView> consumer) {
+        // Page 0 is the header
+        if (mapped != null) {
+            for (int addr = pageSize; addr < mapped.capacity(); addr += pageSize) {
+                consumer.accept(view.wrap(mapped, addr));
+            }
+            return;
+        }
         try {
-            File f = new File(this.fileName);
-            RandomAccessFile rFile = new RandomAccessFile(f, "r");
-            return rFile.length();
-        } catch (FileNotFoundException fnf) {
-            return 0L;
+            for (long addr = pageSize; addr < store.size(); addr += pageSize) {
+                int frame = pool.pin(fileId, addr);
+                try {
+                    consumer.accept(view.wrap(pool.getBuffer(), pool.offset(frame)));
+                } finally {
+                    pool.unpin(frame, false);
+                }
+            }
         } catch (IOException ioe) {
-            return 0L;
+            ioe.printStackTrace();
         }
     }
 
     private void splitChild(Node x, int index) {
-        Node z = new Node();
+        Node z = new Node(t);
         z.address = getNewAddress();
         Node y = readNodeFromFile(x.children[index]);
-        y.parent = x.address;
-        z.parent = x.address;
-        for (int i = 0; i < T - 1; i++) {
-            z.keys[i] = y.keys[i + T];
-            z.frequencies[i] = y.frequencies[i + T];
+        z.leaf = y.leaf;
+        z.numKeys = t - 1;
+        for (int i = 0; i < t - 1; i++) {
+            z.keys[i] = y.keys[i + t];
+            z.frequencies[i] = y.frequencies[i + t];
         }
         if (!y.leafStatus()) {
-            for (int i = 0; i < T; i++) {
-                z.children[i] = y.children[i + T];
+            for (int i = 0; i < t; i++) {
+                z.children[i] = y.children[i + t];
             }
         }
         for (int i = x.numKeys(); i > index; i--) {
@@ -138,16 +443,14 @@ public class BTree {
             x.keys[i + 1] = x.keys[i];
             x.frequencies[i + 1] = x.frequencies[i];
         }
-        x.keys[index] = y.keys[T - 1];
-        x.frequencies[index] = y.frequencies[T - 1];
-        y.setNumKeys(T - 1);
+        x.keys[index] = y.keys[t - 1];
+        x.frequencies[index] = y.frequencies[t - 1];
+        x.numKeys++;
+        y.setNumKeys(t - 1);
         try {
             writeNodeToFile(z);
             writeNodeToFile(x);
             writeNodeToFile(y);
-            propagateChildren(z);
-            propagateChildren(x);
-            propagateChildren(y);
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
@@ -155,21 +458,24 @@ public class BTree {
 
     public void insert(long k, int freq) {
         try {
-            Node r = readNodeFromFile(0);
+            Node r = readNodeFromFile(header.rootAddress);
             if (r.isFull()) {
-                r.address = getNewAddress();
-                r.parent = 0;
-                writeNodeToFile(r);
-                Node s = new Node();
+                // Grow a new root above the old one
+                Node s = new Node(t);
+                s.address = getNewAddress();
+                s.leaf = false;
                 s.children[0] = r.address;
-                s.address = 0;
+                header.rootAddress = s.address;
                 writeNodeToFile(s);
                 splitChild(s, 0);
-                s = readNodeFromFile(0);
+                s = readNodeFromFile(s.address);
                 insertNonFull(s, k, freq);
             } else {
                 insertNonFull(r, k, freq);
             }
+            header.keyCount++;
+            header.recordChange(0, freq);
+            headerDirty = true;
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
@@ -186,6 +492,7 @@ public class BTree {
                 }
                 x.keys[i + 1] = k;
                 x.frequencies[i + 1] = freq;
+                x.numKeys++;
                 writeNodeToFile(x);
             } else {
                 while (i >= 0 && k < x.keys[i]) {
@@ -207,34 +514,195 @@ public class BTree {
         }
     }
 
-    public int search(long key) {
-        return bTreeSearch(this.root, key);
+    /**
+     * Sets the frequency of a key, inserting it if it is not in the tree.
+     * An existing key is updated by rewriting only the page that holds it
+     *
+     * @param key the key to set
+     * @param freq its new frequency
+     * @return the previous frequency, 0 if the key was not present
+     */
+    public int upsert(long key, int freq) {
+        Node node = findNode(key);
+        if (node == null) {
+            insert(key, freq);
+            return 0;
+        }
+        int i = node.indexOf(key);
+        int old = node.frequencies[i];
+        setFrequency(node, i, freq);
+        return old;
     }
 
-    private int bTreeSearch(Node node, long key) {
-        int i = 0;
-        while (i < K && key > node.keys[i]) {
-            if (node.keys[i] == NULL) {
-                // Need this in here as NULL==-1, which could be evaluated
-                break;
+    /**
+     * Adds delta to the frequency of a key, never going below 0.
+     * A missing key is inserted if delta is positive.
+     * A key whose frequency reaches 0 stays in the tree and is reported as absent by search
+     *
+     * @param key the key to change
+     * @param delta amount to add to its frequency
+     * @return the new frequency
+     */
+    public int increment(long key, int delta) {
+        Node node = findNode(key);
+        if (node == null) {
+            if (delta > 0) {
+                insert(key, delta);
+                return delta;
+            }
+            return 0;
+        }
+        int i = node.indexOf(key);
+        int freq = Math.max(0, node.frequencies[i] + delta);
+        setFrequency(node, i, freq);
+        return freq;
+    }
+
+    /**
+     * Applies a batch of increments. The batch is sorted and merged, then pushed down the tree in one walk
+     * so that each page holding existing keys is read and rewritten at most once.
+     * Keys that are not in the tree are inserted afterwards if their delta is positive
+     *
+     * @param keys keys to change, may be unsorted and contain repeats
+     * @param deltas amount to add to each key's frequency
+     */
+    public void applyDeltas(long[] keys, int[] deltas) {
+        if (keys.length != deltas.length) {
+            throw new IllegalArgumentException("Got " + keys.length + " keys but " + deltas.length + " deltas");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        long[] sortedKeys = Arrays.copyOf(keys, keys.length);
+        int[] sortedDeltas = Arrays.copyOf(deltas, deltas.length);
+        sortParallel(sortedKeys, sortedDeltas);
+        // Merge repeated keys
+        int n = 0;
+        for (int i = 0; i < sortedKeys.length; i++) {
+            if (n > 0 && sortedKeys[n - 1] == sortedKeys[i]) {
+                sortedDeltas[n - 1] += sortedDeltas[i];
             } else {
+                sortedKeys[n] = sortedKeys[i];
+                sortedDeltas[n] = sortedDeltas[i];
+                n++;
+            }
+        }
+        boolean[] missing = new boolean[n];
+        try {
+            applyDeltas(readNodeFromFile(header.rootAddress), sortedKeys, sortedDeltas, 0, n, missing);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        for (int i = 0; i < n; i++) {
+            if (missing[i] && sortedDeltas[i] > 0) {
+                insert(sortedKeys[i], sortedDeltas[i]);
+            }
+        }
+    }
+
+    /**
+     * Applies the sorted deltas in [from, to) to the subtree rooted at node, marking keys it does not hold as missing
+     */
+    private void applyDeltas(Node node, long[] keys, int[] deltas, int from, int to, boolean[] missing) throws IOException {
+        boolean changed = false;
+        int i = from;
+        while (i < to) {
+            int index = node.indexOf(keys[i]);
+            if (index >= 0) {
+                int freq = Math.max(0, node.frequencies[index] + deltas[i]);
+                header.recordChange(node.frequencies[index], freq);
+                node.frequencies[index] = freq;
+                changed = true;
                 i++;
+            } else if (node.leafStatus()) {
+                missing[i] = true;
+                i++;
+            } else {
+                // Every following key that falls between the same two keys goes to the same child
+                int child = -index - 1;
+                int end = i + 1;
+                while (end < to && (child == node.numKeys() || keys[end] < node.keys[child])) {
+                    end++;
+                }
+                applyDeltas(readNodeFromFile(node.children[child]), keys, deltas, i, end, missing);
+                i = end;
             }
+        }
+        if (changed) {
+            headerDirty = true;
+            writeNodeToFile(node);
+        }
+    }
+
+    /**
+     * @return the node holding key, or null if the key is not in the tree
+     */
+    private Node findNode(long key) {
+        Node node = readNodeFromFile(header.rootAddress);
+        while (node != null) {
+            int i = node.indexOf(key);
+            if (i >= 0) {
+                return node;
+            } else if (node.leafStatus()) {
+                return null;
+            }
+            node = readNodeFromFile(node.children[-i - 1]);
+        }
+        return null;
+    }
+
+    private void setFrequency(Node node, int index, int freq) {
+        header.recordChange(node.frequencies[index], freq);
+        headerDirty = true;
+        node.frequencies[index] = freq;
+        try {
+            writeNodeToFile(node);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    public int search(long key) {
+        if (mapped != null) {
+            return mappedSearch(key);
+        }
+        // Read the root each time as inserts may have split it
+        return bTreeSearch(readNodeFromFile(header.rootAddress), key);
+    }
 
+    /**
+     * Search that walks the mapping with a NodeView instead of decoding Nodes
+     */
+    private int mappedSearch(long key) {
+        long address = header.rootAddress;
+        while (address < mapped.capacity()) {
+            view.wrap(mapped, (int) address);
+            int i = view.indexOf(key);
+            if (i >= 0) {
+                return view.frequency(i);
+            } else if (view.leafStatus()) {
+                return 0;
+            }
+            address = view.child(-i - 1);
         }
-        if (i < K && key == node.keys[i]) {
+        return 0;
+    }
+
+    private int bTreeSearch(Node node, long key) {
+        int i = node.indexOf(key);
+        if (i >= 0) {
             return node.frequencies[i];
         } else if (node.leafStatus()) {
             return 0;
         } else {
-            Node next = readNodeFromFile(node.children[i]);
+            Node next = readNodeFromFile(node.children[-i - 1]);
             if (next == null) return 0;
             return bTreeSearch(next, key);
         }
     }
 
     public double computeEuclideanDistance(BTree other) {
-        Node n = readNodeFromFile(0);
+        Node n = readNodeFromFile(header.rootAddress);
         return Math.sqrt(computeEuclideanDistance(n, other, 0));
     }
 
@@ -242,129 +710,119 @@ public class BTree {
         if (node.leafStatus()) {
             return total;
         } else {
-            for (int i = 0; i < node.keys.length; i++) {
+            for (int i = 0; i < node.numKeys(); i++) {
                 long wordA = node.keys[i];
                 int freqA = node.frequencies[i];
                 int freqB = other.search(wordA);
                 double x = (freqA - freqB) * (freqA - freqB);
                 total = total + x;
             }
-            for (int i = 0; i < NUM_CHILDREN; i++) {
-                if (node.children[i] != NULL) {
-                    Node x = readNodeFromFile(node.children[i]);
-                    return computeEuclideanDistance(x, other, total);
-                }
-            }
-            return total;
+            Node x = readNodeFromFile(node.children[0]);
+            return computeEuclideanDistance(x, other, total);
         }
     }
 
-    public int totalWordCount() {
-        Node node = readNodeFromFile(0);
-        return this.totalWordCount(node, 0);
+    /**
+     * @return the sum of every frequency in the tree, kept in the header
+     */
+    public long totalWordCount() {
+        return header.totalWordCount;
     }
 
-    private int totalWordCount(Node n, int total) {
-        if (n.leafStatus()) {
-            return total;
-        } else {
-            for (int i = 0; i < K; i++) {
-                if (n.keys[i] != NULL) {
-                    total += n.frequencies[i];
-                }
-            }
-            for (int i = 0; i < NUM_CHILDREN; i++) {
-                if (n.children[i] != NULL) {
-                    Node x = readNodeFromFile(n.children[i]);
-                    return totalWordCount(x, total);
-                }
-            }
-            return total;
-        }
+    /**
+     * @return the number of keys stored in the tree, kept in the header
+     */
+    public int totalNumKeys() {
+        return (int) header.keyCount;
     }
 
+    /**
+     * @return the L2 norm of the tree's frequency vector, kept in the header
+     */
+    public double norm() {
+        return Math.sqrt(header.sumOfSquares);
+    }
 
-    public int totalNumKeys() {
-        int total = 0;
-        File f = new File(this.fileName);
-        long addr = 0;
-        while(addr<f.length()){
-            Node node =readNodeFromFile(addr);
-            addr += BLOCK_SIZE;
-            for (int i = 0; i <K ; i++) {
-                if(node.keys[i]!=-1){
-                    total++;
-                }
-            }
+    /**
+     * @return the hasher this tree's keys were hashed with, kept in the header
+     */
+    public TermHasher termHasher() {
+        return TermHasher.forId(header.termHasher);
+    }
+
+    /**
+     * @return a cursor over every key of this tree in ascending order
+     */
+    public BTreeCursor cursor() {
+        return new BTreeCursor(this);
+    }
+
+    /**
+     * @param from smallest key the cursor should return
+     * @return a cursor over every key greater than or equal to from, in ascending order
+     */
+    public BTreeCursor cursor(long from) {
+        return new BTreeCursor(this, from);
+    }
+
+    /**
+     * Visits every key between lo and hi, both inclusive, in ascending order
+     * @param lo smallest key to visit
+     * @param hi largest key to visit
+     * @param consumer receives each key and its frequency
+     */
+    public void rangeScan(long lo, long hi, KeyFreqConsumer consumer) {
+        if (lo > hi) {
+            return;
         }
-        return total;
+        cursor(lo).forEachUntil(hi, consumer);
     }
 
     /**
-     * This method ensures that, on disk, the children of nodes point to their correct parents
+     * Points a view at a node page for a cursor.
+     * A read only tree is viewed in place, otherwise the page is copied out of the pool into scratch
+     *
+     * @param address address of the page
+     * @param view the view to point at the page
+     * @param scratch a heap buffer of at least one page, used when the tree is not mapped
+     * @return view
      */
-    private void propagateChildren(Node n) throws IOException {
-        for (int i = 0; i < K; i++) {
-            if (n.children[i] != -1) {
-                Node child = readNodeFromFile(n.children[i]);
-                child.parent = n.address;
-                writeNodeToFile(child);
+    NodeView loadPage(long address, NodeView view, ByteBuffer scratch) throws IOException {
+        if (mapped != null) {
+            if (address >= mapped.capacity()) {
+                throw new IOException("Page " + address + " is past the end of " + fileName);
             }
+            return view.wrap(mapped, (int) address);
         }
+        pool.read(fileId, address, scratch.array());
+        return view.wrap(scratch, 0);
     }
+
+    /**
+     * @return path of the tree file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
     public void printAllAgain(){
-        Node root = readNodeFromFile(0);
+        Node root = readNodeFromFile(header.rootAddress);
         printAllAgain(root);
     }
     private void printAllAgain(Node n){
         this.forEach(System.out::println);
     }
     public void forEach(Consumer<Node> consumer){
-        Node root= readNodeFromFile(0);
+        Node root= readNodeFromFile(header.rootAddress);
         forEach(consumer,root);
     }
     private void forEach(Consumer<Node> consumer,Node n){
         consumer.accept(n);
-        for (int i = 0; i <n.children.length ; i++) {
-            if(n.children[i]!=-1){
+        if (!n.leafStatus()) {
+            for (int i = 0; i <= n.numKeys(); i++) {
                 forEach(consumer,readNodeFromFile(n.children[i]));
             }
         }
     }
-    public double cosineSimilarity(BTree other){
-        HashMap<Long,Integer> currMap = getKeyFreqMap();
-        HashMap<Long,Integer> otherMap = other.getKeyFreqMap();
-        double top = 0;
-        double bottomA =0;
-        double bottomB = 0;
-        for(Map.Entry<Long,Integer> entry:currMap.entrySet()){
-            int a = entry.getValue().intValue();
-            int b =0;
-            if(otherMap.containsKey(entry.getKey())){
-                b = otherMap.get(entry.getKey());
-            }
-            top += (a * b);
-            bottomA += (a*a);
-        }
-        for(Map.Entry<Long,Integer> entry:otherMap.entrySet()){
-            int b = entry.getValue().intValue();
-            bottomB +=(b*b);
-        }
-        double bottom = ((Math.sqrt(bottomA)) * (Math.sqrt(bottomB)));
-        return top/bottom;
-
-    }
-
-    public HashMap<Long,Integer> getKeyFreqMap(){
-        HashMap<Long,Integer> out = new HashMap<>();
-        this.forEach(node -> {
-            for (int i = 0; i <node.keys.length ; i++) {
-                if(node.keys[i]!=NULL){
-                    out.put(node.keys[i],node.frequencies[i]);
-                }
-            }
-        });
-        return out;
-    }
 
 }
@@ -0,0 +1,145 @@
+package com.nesposi3;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Walks the keys of a BTree in ascending order.
+ *
+ * The cursor keeps a stack holding one page per level of the tree, so every node is read once, in key order,
+ * and moving to the next key never allocates. For a read only tree the pages are viewed straight from the
+ * mapping, otherwise each level's page is copied once out of the buffer pool.
+ * A cursor must not be used after the tree it walks has been modified, and read errors surface as
+ * UncheckedIOException.
+ *
+ * Usage:
+ *      BTreeCursor cursor = tree.cursor();
+ *      while (cursor.next()) {
+ *          use(cursor.key(), cursor.frequency());
+ *      }
+ */
+public class BTreeCursor {
+    private final BTree tree;
+    private final int t;
+    private NodeView[] views = new NodeView[0];
+    private ByteBuffer[] pages = new ByteBuffer[0];
+    // Index of the next key to return from each level
+    private int[] positions = new int[0];
+    private int depth;
+    private long key;
+    private int frequency;
+
+    /**
+     * Creates a cursor positioned before the smallest key of the tree
+     */
+    BTreeCursor(BTree tree) {
+        this.tree = tree;
+        this.t = tree.getHeader().t;
+        push(tree.getHeader().rootAddress);
+        descendLeftmost();
+    }
+
+    /**
+     * Creates a cursor positioned before the smallest key greater than or equal to from
+     */
+    BTreeCursor(BTree tree, long from) {
+        this.tree = tree;
+        this.t = tree.getHeader().t;
+        NodeView node = push(tree.getHeader().rootAddress);
+        while (true) {
+            int i = node.indexOf(from);
+            if (i >= 0) {
+                positions[depth - 1] = i;
+                return;
+            }
+            positions[depth - 1] = -i - 1;
+            if (node.leafStatus()) {
+                return;
+            }
+            node = push(node.child(-i - 1));
+        }
+    }
+
+    /**
+     * Moves to the next key
+     * @return true if there was another key, false once the cursor is past the last key
+     */
+    public boolean next() {
+        while (depth > 0) {
+            int level = depth - 1;
+            NodeView node = views[level];
+            int i = positions[level];
+            if (i < node.numKeys()) {
+                key = node.key(i);
+                frequency = node.frequency(i);
+                positions[level] = i + 1;
+                if (!node.leafStatus()) {
+                    // Everything in the child to the right of this key comes next
+                    push(node.child(i + 1));
+                    descendLeftmost();
+                }
+                return true;
+            }
+            depth--;
+        }
+        return false;
+    }
+
+    /**
+     * @return the key the cursor is on
+     */
+    public long key() {
+        return key;
+    }
+
+    /**
+     * @return the frequency of the key the cursor is on
+     */
+    public int frequency() {
+        return frequency;
+    }
+
+    /**
+     * Passes every remaining key up to and including to to the consumer
+     * @param to largest key to visit
+     * @param consumer receives each key and its frequency
+     */
+    public void forEachUntil(long to, KeyFreqConsumer consumer) {
+        while (next() && key <= to) {
+            consumer.accept(key, frequency);
+        }
+    }
+
+    private void descendLeftmost() {
+        NodeView node = views[depth - 1];
+        while (!node.leafStatus()) {
+            node = push(node.child(0));
+        }
+    }
+
+    private NodeView push(long address) {
+        if (depth == views.length) {
+            int size = depth + 4;
+            views = Arrays.copyOf(views, size);
+            pages = Arrays.copyOf(pages, size);
+            positions = Arrays.copyOf(positions, size);
+        }
+        if (views[depth] == null) {
+            views[depth] = new NodeView(t);
+        }
+        if (pages[depth] == null) {
+            pages[depth] = ByteBuffer.allocate(tree.getHeader().pageSize);
+        }
+        NodeView view;
+        try {
+            view = tree.loadPage(address, views[depth], pages[depth]);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not read page " + address + " of " + tree.getFileName(), ioe);
+        }
+        positions[depth] = 0;
+        depth++;
+        return view;
+    }
+}
@@ -0,0 +1,144 @@
+package com.nesposi3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The first page of every BTree file, describing how the rest of the file is laid out.
+ *
+ * Header format in bytes:
+ *      4       4       4        4            8             8               8                  8                4           4
+ *   | magic | version |  T  | page size | root address | key count | total word count | sum of squares | term hasher | 0 |
+ *
+ * The sum of squares is the sum of every frequency squared, the square of the document's L2 norm.
+ * The term hasher is the TermHasher id the keys were hashed with.
+ * The rest of the page is zero
+ */
+public class BTreeHeader {
+    public static final int MAGIC = 0x42545245;
+    // Version 2 switched Node pages to the columnar layout with an explicit key count
+    // Version 3 added the sum of squares, version 2 files are still read and get it recomputed
+    // Version 4 added the term hasher, older files were all hashed with MD5
+    public static final int VERSION = 4;
+    public static final int HEADER_SIZE = 56;
+    // Stored in sumOfSquares when the file predates it
+    public static final long UNKNOWN = -1;
+    public int t;
+    public int pageSize;
+    public long rootAddress;
+    public long keyCount;
+    public long totalWordCount;
+    public long sumOfSquares;
+    public int termHasher;
+
+    /**
+     * Creates the header of a new, empty tree whose root is the page after the header, hashed with the default hasher
+     * @param t minimum degree of every node
+     * @param pageSize size of every page, including the header page
+     */
+    public BTreeHeader(int t, int pageSize) {
+        if (t < 2) {
+            throw new IllegalArgumentException("T must be at least 2, was " + t);
+        }
+        if (pageSize < HEADER_SIZE || pageSize < nodeSize(t)) {
+            throw new IllegalArgumentException("A " + pageSize + " byte page can not hold a node with T=" + t
+                    + ", the most it can hold is T=" + maxDegree(pageSize));
+        }
+        this.t = t;
+        this.pageSize = pageSize;
+        this.rootAddress = pageSize;
+        this.termHasher = TermHasher.defaultHasher().id();
+    }
+
+    /**
+     * Decodes a header
+     * @param buffer buffer positioned at the start of the header
+     * @throws IOException if the buffer does not hold a header this version can read
+     */
+    public BTreeHeader(ByteBuffer buffer) throws IOException {
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a BTree file, or written before BTree files had a header. Rebuild it");
+        }
+        if (version < 2 || version > VERSION) {
+            throw new IOException("BTree file version " + version + " is not supported, expected " + VERSION);
+        }
+        this.t = buffer.getInt();
+        this.pageSize = buffer.getInt();
+        this.rootAddress = buffer.getLong();
+        this.keyCount = buffer.getLong();
+        this.totalWordCount = buffer.getLong();
+        this.sumOfSquares = version >= 3 ? buffer.getLong() : UNKNOWN;
+        this.termHasher = version >= 4 ? buffer.getInt() : TermHasher.MD5;
+        if (termHasher != TermHasher.MD5 && termHasher != TermHasher.XXHASH64) {
+            throw new IOException("BTree file was hashed with unknown term hasher " + termHasher);
+        }
+    }
+
+    /**
+     * Reads the header at the start of a file
+     * @param channel an open, non-empty BTree file
+     * @return the decoded header
+     * @throws IOException if the file is too short or has no valid header
+     */
+    public static BTreeHeader read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IOException("BTree file is too short to hold a header");
+            }
+        }
+        buffer.flip();
+        return new BTreeHeader(buffer);
+    }
+
+    /**
+     * Serializes this header into a full page
+     * @return a byte[] of pageSize bytes
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(t);
+        buffer.putInt(pageSize);
+        buffer.putLong(rootAddress);
+        buffer.putLong(keyCount);
+        buffer.putLong(totalWordCount);
+        buffer.putLong(sumOfSquares);
+        buffer.putInt(termHasher);
+        return buffer.array();
+    }
+
+    /**
+     * Updates the word count and sum of squares after a key's frequency changes
+     * @param oldFreq frequency before the change, 0 for a new key
+     * @param newFreq frequency after the change
+     */
+    public void recordChange(int oldFreq, int newFreq) {
+        totalWordCount += newFreq - oldFreq;
+        sumOfSquares += (long) newFreq * newFreq - (long) oldFreq * oldFreq;
+    }
+
+    /**
+     * @param t minimum degree of a node
+     * @return the number of bytes a serialized node with that degree takes
+     */
+    public static int nodeSize(int t) {
+        return Node.size(t);
+    }
+
+    /**
+     * @param pageSize size of a page
+     * @return the largest T whose nodes fit in a page of that size
+     */
+    public static int maxDegree(int pageSize) {
+        int t = 1;
+        while (nodeSize(t + 1) <= pageSize) {
+            t++;
+        }
+        return t;
+    }
+}
@@ -0,0 +1,421 @@
+package com.nesposi3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.nesposi3.Utils.BTreeUtils.POOL_BUDGET_BYTES;
+
+/**
+ * A process-wide, write-back LRU pool of fixed-size pages shared by every open BTree.
+ *
+ * Each PageStore registers with the pool and gets a file id, and pages are keyed by (file id, page number)
+ * packed into one long. Pages live in a single byte[] slab, one frame per page, sized from a single memory budget.
+ * Keys are mapped to frames by an open-addressing (linear probing) table of primitive longs, and frames are kept
+ * on an intrusive doubly linked list in access order. Eviction takes the least recently used unpinned frame no
+ * matter which tree owns it, so idle trees give up their pages to busy ones.
+ * Written pages are only marked dirty, they reach their PageStore when evicted, flushed or unregistered.
+ *
+ * A pinned frame is never evicted, which lets a scan read a page in place without copying it.
+ */
+public class BufferPool {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int NONE = -1;
+    // Bits of the key holding the page number, the rest hold the file id
+    private static final int PAGE_BITS = 40;
+    private static final int MAX_FILES = 1 << (63 - PAGE_BITS);
+    private static final Map<Integer, BufferPool> shared = new HashMap<>();
+    private final int pageSize;
+    private final int capacity;
+    private final byte[] slab;
+    private final ByteBuffer slabBuffer;
+    // Hash table from page key to frame
+    private final long[] tableKeys;
+    private final int[] tableFrames;
+    private final int mask;
+    // Per frame state
+    private final long[] frameKey;
+    private final boolean[] dirty;
+    private final int[] pins;
+    private final int[] prev;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int used;
+    // Frames given back after a failed load or an unregister
+    private final int[] freeFrames;
+    private int freeCount;
+    // Registered stores, indexed by file id
+    private PageStore[] stores = new PageStore[16];
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+    private int nextId;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * @param pageSize size of every page held by the pool
+     * @param budgetBytes total bytes the pool may use for pages
+     */
+    public BufferPool(int pageSize, long budgetBytes) {
+        long frames = Math.min(budgetBytes / pageSize, Integer.MAX_VALUE / pageSize);
+        if (frames < 1) {
+            throw new IllegalArgumentException("A budget of " + budgetBytes + " bytes can not hold a " + pageSize + " byte page");
+        }
+        this.pageSize = pageSize;
+        this.capacity = (int) frames;
+        this.slab = new byte[capacity * pageSize];
+        this.slabBuffer = ByteBuffer.wrap(slab);
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.tableKeys = new long[tableSize];
+        this.tableFrames = new int[tableSize];
+        this.mask = tableSize - 1;
+        Arrays.fill(tableKeys, EMPTY);
+        this.frameKey = new long[capacity];
+        this.dirty = new boolean[capacity];
+        this.pins = new int[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+        this.freeFrames = new int[capacity];
+    }
+
+    /**
+     * The pool used by every BTree with the given page size unless one is given explicitly.
+     * Its budget is read from the btree.pool.bytes system property, defaulting to POOL_BUDGET_BYTES.
+     * Each page size gets its own pool and budget, a corpus normally uses a single page size
+     * @param pageSize size of the pages held by the pool
+     * @return the process wide pool for that page size
+     */
+    public static synchronized BufferPool shared(int pageSize) {
+        BufferPool pool = shared.get(pageSize);
+        if (pool == null) {
+            pool = new BufferPool(pageSize, Long.getLong("btree.pool.bytes", POOL_BUDGET_BYTES));
+            shared.put(pageSize, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Adds a store to the pool
+     * @param store the store pages are loaded from and written back to
+     * @return the file id used for the store's pages
+     */
+    public synchronized int register(PageStore store) {
+        if (store.getPageSize() != pageSize) {
+            throw new IllegalArgumentException("Pool holds " + pageSize + " byte pages, store uses " + store.getPageSize());
+        }
+        int id;
+        if (freeIdCount > 0) {
+            id = freeIds[--freeIdCount];
+        } else {
+            if (nextId == MAX_FILES) {
+                throw new IllegalStateException("Too many files registered with the buffer pool");
+            }
+            id = nextId++;
+            if (id == stores.length) {
+                stores = Arrays.copyOf(stores, id * 2);
+                freeIds = Arrays.copyOf(freeIds, id * 2);
+            }
+        }
+        stores[id] = store;
+        return id;
+    }
+
+    /**
+     * Writes back and drops every page of a file, then frees its id
+     * @param fileId id returned by register
+     * @throws IOException if a dirty page can not be written back
+     */
+    public synchronized void unregister(int fileId) throws IOException {
+        for (int frame = 0; frame < used; frame++) {
+            if (frameKey[frame] != EMPTY && fileOf(frameKey[frame]) == fileId && pins[frame] > 0) {
+                throw new IllegalStateException("A page of file " + fileId + " is still pinned");
+            }
+        }
+        for (int frame = 0; frame < used; frame++) {
+            if (frameKey[frame] != EMPTY && fileOf(frameKey[frame]) == fileId) {
+                writeBack(frame);
+                release(frame);
+            }
+        }
+        stores[fileId] = null;
+        freeIds[freeIdCount++] = fileId;
+    }
+
+    /**
+     * Copies a page into dst, loading it from its store on a miss
+     * @param fileId id of the file owning the page
+     * @param address byte offset of the page
+     * @param dst array of at least pageSize bytes
+     * @throws IOException if the page has to be loaded and can not be
+     */
+    public synchronized void read(int fileId, long address, byte[] dst) throws IOException {
+        int frame = pin(fileId, address);
+        System.arraycopy(slab, frame * pageSize, dst, 0, pageSize);
+        unpin(frame, false);
+    }
+
+    /**
+     * Replaces the pooled contents of a page and marks it dirty
+     * @param fileId id of the file owning the page
+     * @param address byte offset of the page
+     * @param src the new page contents
+     * @throws IOException if a dirty page has to be evicted and can not be written back
+     */
+    public synchronized void write(int fileId, long address, byte[] src) throws IOException {
+        long key = key(fileId, address);
+        int frame = find(key);
+        if (frame != NONE) {
+            touch(frame);
+        } else {
+            frame = claimFrame(key);
+        }
+        System.arraycopy(src, 0, slab, frame * pageSize, pageSize);
+        dirty[frame] = true;
+    }
+
+    /**
+     * Makes a page resident and keeps it from being evicted until unpin is called.
+     * The page can then be read in place from getBuffer() at offset(frame)
+     * @param fileId id of the file owning the page
+     * @param address byte offset of the page
+     * @return the frame holding the page
+     * @throws IOException if the page has to be loaded and can not be
+     */
+    public synchronized int pin(int fileId, long address) throws IOException {
+        long key = key(fileId, address);
+        int frame = find(key);
+        if (frame != NONE) {
+            hits++;
+            touch(frame);
+        } else {
+            misses++;
+            frame = claimFrame(key);
+            try {
+                stores[fileId].readPage(address, slab, frame * pageSize);
+            } catch (IOException ioe) {
+                release(frame);
+                throw ioe;
+            }
+        }
+        pins[frame]++;
+        return frame;
+    }
+
+    /**
+     * Releases a pin taken by pin
+     * @param frame the frame returned by pin
+     * @param modified true if the page was changed in place and must be written back
+     */
+    public synchronized void unpin(int frame, boolean modified) {
+        if (pins[frame] == 0) {
+            throw new IllegalStateException("Frame " + frame + " is not pinned");
+        }
+        pins[frame]--;
+        dirty[frame] |= modified;
+    }
+
+    /**
+     * @return a buffer over every frame of the pool, only pinned frames may be read through it
+     */
+    public ByteBuffer getBuffer() {
+        return slabBuffer;
+    }
+
+    /**
+     * @param frame a frame returned by pin
+     * @return the offset of the frame within getBuffer()
+     */
+    public int offset(int frame) {
+        return frame * pageSize;
+    }
+
+    /**
+     * Writes every dirty page of a file back to its store
+     * @param fileId id of the file to flush
+     * @throws IOException on a failed write
+     */
+    public synchronized void flush(int fileId) throws IOException {
+        for (int frame = head; frame != NONE; frame = next[frame]) {
+            if (fileOf(frameKey[frame]) == fileId) {
+                writeBack(frame);
+            }
+        }
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getWriteBacks() {
+        return writeBacks;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", writeBacks=" + writeBacks + ", resident=" + (used - freeCount) + "/" + capacity + "}";
+    }
+
+    private long key(int fileId, long address) {
+        return ((long) fileId << PAGE_BITS) | (address / pageSize);
+    }
+
+    private static int fileOf(long key) {
+        return (int) (key >>> PAGE_BITS);
+    }
+
+    /**
+     * Gets a frame for a page that is not resident, evicting the least recently used unpinned page if full
+     */
+    private int claimFrame(long key) throws IOException {
+        int frame;
+        if (freeCount > 0) {
+            frame = freeFrames[--freeCount];
+        } else if (used < capacity) {
+            frame = used++;
+        } else {
+            frame = tail;
+            while (frame != NONE && pins[frame] > 0) {
+                frame = prev[frame];
+            }
+            if (frame == NONE) {
+                throw new IllegalStateException("Every page in the buffer pool is pinned");
+            }
+            writeBack(frame);
+            remove(frameKey[frame]);
+            unlink(frame);
+            evictions++;
+        }
+        frameKey[frame] = key;
+        dirty[frame] = false;
+        pins[frame] = 0;
+        insert(key, frame);
+        linkFirst(frame);
+        return frame;
+    }
+
+    /**
+     * Returns a resident frame to the free list without writing it back
+     */
+    private void release(int frame) {
+        remove(frameKey[frame]);
+        unlink(frame);
+        frameKey[frame] = EMPTY;
+        dirty[frame] = false;
+        freeFrames[freeCount++] = frame;
+    }
+
+    private void writeBack(int frame) throws IOException {
+        if (dirty[frame]) {
+            long key = frameKey[frame];
+            long address = (key & ((1L << PAGE_BITS) - 1)) * pageSize;
+            stores[fileOf(key)].writePage(address, slab, frame * pageSize);
+            dirty[frame] = false;
+            writeBacks++;
+        }
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private int find(long key) {
+        for (int i = slot(key); tableKeys[i] != EMPTY; i = (i + 1) & mask) {
+            if (tableKeys[i] == key) {
+                return tableFrames[i];
+            }
+        }
+        return NONE;
+    }
+
+    private void insert(long key, int frame) {
+        int i = slot(key);
+        while (tableKeys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        tableKeys[i] = key;
+        tableFrames[i] = frame;
+    }
+
+    /**
+     * Removes key from the table using backward shift deletion, so no tombstones are needed
+     */
+    private void remove(long key) {
+        int i = slot(key);
+        while (tableKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (tableKeys[j] == EMPTY) {
+                break;
+            }
+            int home = slot(tableKeys[j]);
+            // Move j back into the hole at i if its home slot is not cyclically within (i, j]
+            boolean between = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                tableKeys[i] = tableKeys[j];
+                tableFrames[i] = tableFrames[j];
+                i = j;
+            }
+        }
+        tableKeys[i] = EMPTY;
+    }
+
+    private void touch(int frame) {
+        if (head != frame) {
+            unlink(frame);
+            linkFirst(frame);
+        }
+    }
+
+    private void linkFirst(int frame) {
+        prev[frame] = NONE;
+        next[frame] = head;
+        if (head != NONE) {
+            prev[head] = frame;
+        }
+        head = frame;
+        if (tail == NONE) {
+            tail = frame;
+        }
+    }
+
+    private void unlink(int frame) {
+        if (prev[frame] != NONE) {
+            next[prev[frame]] = next[frame];
+        } else {
+            head = next[frame];
+        }
+        if (next[frame] != NONE) {
+            prev[next[frame]] = prev[frame];
+        } else {
+            tail = prev[frame];
+        }
+        prev[frame] = NONE;
+        next[frame] = NONE;
+    }
+}
@@ -1,145 +1,131 @@
 package com.nesposi3;
 
-import com.nesposi3.Utils.BTreeUtils;
 import com.nesposi3.Utils.CacheUtils;
 
-import javax.imageio.IIOException;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.file.Files;
+import java.util.Arrays;
 
 /**
- * Disk representation of a cluster
- * Contains strings which are the names of the Btree files that represent websites
- *
- * 'Packet' format:
- *
- * |       4      |              4          |            n              |         4         |           (4 | n)*          |
- *   Cluster Id    Length of medioid string   n bytes of medioid string   Number of members    N pairs of lengths and bytes
+ * A cluster of cached documents, as kept in the ClusterCatalog
+ * Documents are referred to by their DocumentDictionary id
  *
+ * Cost is the summed distance of the members to the medioid. The baseline is the cost per member when the
+ * medioid was last chosen, so members added since then show up as drift.
  */
 public class Cluster {
-    private static final String CLUSTER_FILE_LOCATION = "storage/clusters/";
     private int clusterId;
-    public String[] members;
-    public String medioid;
+    // Only the first numMembers entries are members, the rest is room to grow
+    public int[] members;
+    public int numMembers;
+    public int medioid;
+    public double cost;
+    public double baselineCost;
+
     public Cluster(int id){
-        this.members = new String[0];
+        this.members = new int[8];
         this.clusterId = id;
+        this.medioid = -1;
     }
-    public byte[] toBytes(){
-        //Start at 12 due to fixed integer size
-        int totalSize =12;
-        int[] stringSizes = new int[members.length];
-        byte[] medioidBytes = medioid.getBytes();
-        int medioidSize = medioidBytes.length;
-        totalSize += medioidSize;
-        byte[][] membersBytes = new byte[this.members.length][];
-        for (int i = 0; i <members.length ; i++) {
-            membersBytes[i] = members[i].getBytes();
-            stringSizes[i] = membersBytes[i].length;
-            totalSize+=stringSizes[i];
-            totalSize+=4;
-        }
-        ByteBuffer buffer = ByteBuffer.allocate(totalSize);
-        buffer.putInt(clusterId);
-        buffer.putInt(medioidSize);
-        buffer.put(medioidBytes);
-        buffer.putInt(membersBytes.length);
-        for (int i = 0; i <membersBytes.length ; i++) {
-            buffer.putInt(stringSizes[i]);
-            buffer.put(membersBytes[i]);
-        }
-        return buffer.array();
-    }
-    public Cluster(byte[] bytes){
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        this.clusterId = buffer.getInt();
-        int medLength = buffer.getInt();
-        byte[] medioidBytes = new byte[medLength];
-        buffer.get(medioidBytes);
-        this.medioid = new String(medioidBytes);
-        int numMembers = buffer.getInt();
-        this.members = new String[numMembers];
-        for (int i = 0; i <numMembers ; i++) {
-            int currSize = buffer.getInt();
-            byte[] currBytes = new byte[currSize];
-            buffer.get(currBytes);
-            this.members[i] = new String(currBytes);
-        }
 
+    /**
+     * @param id id of the cluster
+     * @param medioid document id of the medioid
+     * @param members document ids of the members, the array is kept
+     * @param numMembers how many entries of members are used
+     * @param cost summed distance of the members to the medioid
+     * @param baselineCost cost per member when the medioid was chosen
+     */
+    public Cluster(int id, int medioid, int[] members, int numMembers, double cost, double baselineCost) {
+        this.clusterId = id;
+        this.medioid = medioid;
+        this.members = members;
+        this.numMembers = numMembers;
+        this.cost = cost;
+        this.baselineCost = baselineCost;
     }
-    public void addMember(String newMember){
-        String[] newMembers = new String[members.length+1];
-        for (int i = 0; i <members.length ; i++) {
-            newMembers[i] = members[i];
+
+    public void addMember(int newMember){
+        if (numMembers == members.length) {
+            // Double so adding members is amortized constant time
+            members = Arrays.copyOf(members, Math.max(8, members.length * 2));
         }
-        newMembers[members.length] = newMember;
-        this.members = newMembers;
+        members[numMembers++] = newMember;
     }
-    public void setMedioid(String s){
-        this.medioid = s;
+
+    public void setMedioid(int id){
+        this.medioid = id;
     }
 
-    public String getMedioid() {
+    public int getMedioid() {
         return medioid;
     }
 
-    public void writeToDisk(){
-        File f = new File(CLUSTER_FILE_LOCATION + this.clusterId);
-        if(f.exists()){
-            f.delete();
-        }
-        try {
-            f.createNewFile();
-            RandomAccessFile x = new RandomAccessFile(f,"rw");
-            x.seek(0);
-            x.write(this.toBytes());
-        }catch (IOException ioe){
-            ioe.printStackTrace();
-        }
+    /**
+     * @return a copy of the member ids
+     */
+    public int[] getMembers(){
+        return Arrays.copyOf(members, numMembers);
     }
-    public static Cluster getCLusterFromDisk(int clusterId){
-        File f = new File(CLUSTER_FILE_LOCATION + clusterId);
-        if(!f.exists()){
-            return null;
-        }
-        try {
-            return new Cluster(Files.readAllBytes(f.toPath()));
-        }catch (IOException ioe){
-            ioe.printStackTrace();
-            return null;
+
+    public int numMembers() {
+        return numMembers;
+    }
+
+    public int getMember(int i) {
+        return members[i];
+    }
+
+    public int getClusterId() {
+        return clusterId;
+    }
+
+    /**
+     * @return how far the cost per member has grown past the baseline, 0.25 meaning 25% worse
+     */
+    public double drift() {
+        double average = cost / Math.max(1, numMembers);
+        if (baselineCost == 0) {
+            return average == 0 ? 0 : Double.POSITIVE_INFINITY;
         }
+        return average / baselineCost - 1;
     }
-    public String[] getMembers(){
-        return members;
+
+    /**
+     * Makes the current cost per member the baseline, after the medioid has been chosen
+     */
+    public void resetBaseline() {
+        this.baselineCost = cost / Math.max(1, numMembers);
     }
 
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder("Cluster: "  + clusterId + "\n" );
-        s.append("Medioid: " + CacheUtils.titleFromFileName(medioid) +"\n");
-        for (int i = 0; i < members.length; i++) {
-            s.append("Member " + i + " " + CacheUtils.titleFromFileName(members[i]) + "\n");
+        s.append("Medioid: " + medioid +"\n");
+        for (int i = 0; i < numMembers; i++) {
+            s.append("Member " + i + " " + members[i] + "\n");
         }
         return s.toString();
     }
 
-    public void removeMember(String member) {
-        for (int i = 0; i <this.members.length ; i++) {
-            if(this.members[i].equals(member)){
-                for (int j = i; j <members.length-1 ; j++) {
-                    this.members[j] = this.members[j+1];
-                }
-            }
+    /**
+     * @param dictionary dictionary the member ids come from
+     * @return the cluster with page titles instead of document ids
+     */
+    public String toString(DocumentDictionary dictionary) {
+        StringBuilder s = new StringBuilder("Cluster: "  + clusterId + "\n" );
+        s.append("Medioid: " + CacheUtils.titleFromFileName(dictionary.name(medioid)) +"\n");
+        for (int i = 0; i < numMembers; i++) {
+            s.append("Member " + i + " " + CacheUtils.titleFromFileName(dictionary.name(members[i])) + "\n");
         }
-        String[] newMembers = new String[this.members.length-1];
-        for (int i = 0; i <members.length-1 ; i++) {
-            newMembers[i] = this.members[i];
+        return s.toString();
+    }
+
+    public void removeMember(int member) {
+        for (int i = 0; i < numMembers; i++) {
+            if (members[i] == member) {
+                System.arraycopy(members, i + 1, members, i, numMembers - i - 1);
+                numMembers--;
+                return;
+            }
         }
-        this.members = newMembers;
     }
 }
@@ -0,0 +1,223 @@
+package com.nesposi3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every cluster in one file, read through a memory mapping.
+ * Documents are stored as DocumentDictionary ids, so every record has a fixed width.
+ * The catalog is always replaced whole: it is written beside the old one and renamed over it,
+ * so readers see either the old or the new clusters, never a mix.
+ *
+ * File format:
+ *      4       4             4                4
+ *   | magic | version | cluster count | member count |
+ *
+ *   clusters, 40 bytes each:
+ *        4         4          4          4          8            8              8
+ *   | cluster id | medioid | members | 0 | first member | cost | baseline cost per member |
+ *
+ *   members: the member ids of every cluster as ints, a cluster's members are contiguous
+ */
+public class ClusterCatalog {
+    public static final String CLUSTER_LOCATION = "storage/clusters/";
+    public static final String CATALOG_FILE_NAME = CLUSTER_LOCATION + "catalog";
+    public static final int MAGIC = 0x434c5354;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 40;
+
+    private final MappedByteBuffer mapped;
+    private final int clusterCount;
+    private final int membersOffset;
+
+    /**
+     * Maps an existing catalog
+     * @param fileName path of the catalog
+     * @throws IOException if the file can not be mapped or is not a catalog
+     */
+    public ClusterCatalog(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException(fileName + " is not a cluster catalog");
+        }
+        if (mapped.getInt(4) != VERSION) {
+            throw new IOException("Cluster catalog version " + mapped.getInt(4) + " is not supported, expected " + VERSION);
+        }
+        this.clusterCount = mapped.getInt(8);
+        this.membersOffset = HEADER_SIZE + clusterCount * ENTRY_SIZE;
+    }
+
+    /**
+     * Opens the catalog of the cache. Clusters still kept as one file per cluster are moved into a catalog first
+     * @return the open catalog, or null if there are no clusters
+     * @throws IOException
+     */
+    public static ClusterCatalog open() throws IOException {
+        File catalog = new File(CATALOG_FILE_NAME);
+        if (!catalog.exists()) {
+            if (!importClusterFiles(CLUSTER_LOCATION, CATALOG_FILE_NAME, DocumentDictionary.shared())) {
+                return null;
+            }
+        }
+        return new ClusterCatalog(CATALOG_FILE_NAME);
+    }
+
+    /**
+     * Replaces a catalog with the given clusters
+     * @param fileName path of the catalog
+     * @param clusters the clusters to store
+     * @throws IOException
+     */
+    public static void write(String fileName, Cluster[] clusters) throws IOException {
+        int memberCount = 0;
+        for (Cluster c : clusters) {
+            memberCount += c.numMembers();
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + clusters.length * ENTRY_SIZE + memberCount * 4);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(clusters.length);
+        out.putInt(memberCount);
+        long first = 0;
+        for (Cluster c : clusters) {
+            out.putInt(c.getClusterId());
+            out.putInt(c.getMedioid());
+            out.putInt(c.numMembers());
+            out.putInt(0);
+            out.putLong(first);
+            out.putDouble(c.cost);
+            out.putDouble(c.baselineCost);
+            first += c.numMembers();
+        }
+        for (Cluster c : clusters) {
+            for (int i = 0; i < c.numMembers(); i++) {
+                out.putInt(c.getMember(i));
+            }
+        }
+        File target = new File(fileName);
+        if (target.getParentFile() != null) {
+            target.getParentFile().mkdirs();
+        }
+        File temp = new File(fileName + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Moves clusters written one file per cluster, with member file names, into a catalog and deletes the old files
+     * @param folder folder of the old cluster files
+     * @param fileName path of the catalog to write
+     * @param dictionary gives the member names their ids
+     * @return false if there were no cluster files
+     * @throws IOException
+     */
+    public static boolean importClusterFiles(String folder, String fileName, DocumentDictionary dictionary) throws IOException {
+        File[] files = new File(folder).listFiles((dir, name) -> name.matches("\\d+"));
+        if (files == null || files.length == 0) {
+            return false;
+        }
+        List<Cluster> clusters = new ArrayList<>();
+        for (File f : files) {
+            // Packet: id, medioid, member count, (length, name) per member, optionally cost and baseline
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+            Cluster cluster = new Cluster(buffer.getInt());
+            cluster.setMedioid(dictionary.add(readName(buffer)));
+            int numMembers = buffer.getInt();
+            for (int i = 0; i < numMembers; i++) {
+                cluster.addMember(dictionary.add(readName(buffer)));
+            }
+            if (buffer.remaining() >= 16) {
+                cluster.cost = buffer.getDouble();
+                cluster.baselineCost = buffer.getDouble();
+            }
+            clusters.add(cluster);
+        }
+        write(fileName, clusters.toArray(new Cluster[0]));
+        for (File f : files) {
+            f.delete();
+        }
+        return true;
+    }
+
+    private static String readName(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+
+    public int clusterCount() {
+        return clusterCount;
+    }
+
+    public int clusterId(int i) {
+        return mapped.getInt(HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    public int medioid(int i) {
+        return mapped.getInt(HEADER_SIZE + i * ENTRY_SIZE + 4);
+    }
+
+    public int memberCount(int i) {
+        return mapped.getInt(HEADER_SIZE + i * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * @param i index of the cluster in the catalog
+     * @param j index of the member in the cluster
+     * @return the member's document id
+     */
+    public int member(int i, int j) {
+        long first = mapped.getLong(HEADER_SIZE + i * ENTRY_SIZE + 16);
+        return mapped.getInt(membersOffset + (int) (first + j) * 4);
+    }
+
+    public double cost(int i) {
+        return mapped.getDouble(HEADER_SIZE + i * ENTRY_SIZE + 24);
+    }
+
+    public double baselineCost(int i) {
+        return mapped.getDouble(HEADER_SIZE + i * ENTRY_SIZE + 32);
+    }
+
+    /**
+     * @param i index of the cluster in the catalog
+     * @return a modifiable copy of the cluster
+     */
+    public Cluster cluster(int i) {
+        int numMembers = memberCount(i);
+        int[] members = new int[Math.max(8, numMembers)];
+        for (int j = 0; j < numMembers; j++) {
+            members[j] = member(i, j);
+        }
+        return new Cluster(clusterId(i), medioid(i), members, numMembers, cost(i), baselineCost(i));
+    }
+
+    /**
+     * @return modifiable copies of every cluster
+     */
+    public Cluster[] clusters() {
+        Cluster[] clusters = new Cluster[clusterCount];
+        for (int i = 0; i < clusterCount; i++) {
+            clusters[i] = cluster(i);
+        }
+        return clusters;
+    }
+}
@@ -0,0 +1,177 @@
+package com.nesposi3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.nesposi3.Utils.BTreeUtils.BTREE_FOLDER_NAME;
+
+/**
+ * The clusters on disk with the tf-idf vectors of their medioids, held in memory between queries.
+ * Ranking a document against the clusters is then one sparse dot product per cluster, in the same tf-idf space
+ * the clusters were formed in.
+ * current() reloads the model when the cluster catalog, the vector store or a medioid tree has changed since it was loaded.
+ * Loading never rebuilds the vector store, a medioid the store is older than is weighed from its tree instead.
+ *
+ * The model also holds the document frequency index queries are weighed with, reopened along with the model.
+ * A model returned by current() should not be used once a later call has loaded a new one.
+ */
+public class ClusterModel {
+    private static ClusterModel current;
+
+    private final Cluster[] clusters;
+    private final DocumentDictionary dictionary;
+    // Unit length tf-idf vector of each cluster's medioid, from the document vector store
+    private final SparseVector[] medioids;
+    private final DocumentFrequencyIndex dfIndex;
+    private final long version;
+
+    /**
+     * A cluster and the similarity of a document to its medioid
+     */
+    public static class Match {
+        public final Cluster cluster;
+        public final double score;
+        private final DocumentDictionary dictionary;
+
+        Match(Cluster cluster, double score, DocumentDictionary dictionary) {
+            this.cluster = cluster;
+            this.score = score;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public String toString() {
+            return "Similarity: " + score + "\n" + cluster.toString(dictionary);
+        }
+    }
+
+    private ClusterModel(Cluster[] clusters, SparseVector[] medioids, DocumentDictionary dictionary,
+                         DocumentFrequencyIndex dfIndex, long version) {
+        this.clusters = clusters;
+        this.medioids = medioids;
+        this.dictionary = dictionary;
+        this.dfIndex = dfIndex;
+        this.version = version;
+    }
+
+    /**
+     * @return the model of the clusters on disk, loaded again only if they changed since the last call
+     * @throws IOException if the clusters or a medioid can not be read
+     */
+    public static synchronized ClusterModel current() throws IOException {
+        if (current == null || current.version != version(current.clusters, current.dictionary)) {
+            if (current != null) {
+                current.dfIndex.close();
+            }
+            current = load();
+        }
+        return current;
+    }
+
+    /**
+     * Combines the modification times of the catalog, the vector store and the medioids' trees
+     */
+    private static long version(Cluster[] clusters, DocumentDictionary dictionary) {
+        long version = new File(ClusterCatalog.CATALOG_FILE_NAME).lastModified();
+        version = version * 31 + new File(DocumentVectorStore.INDEX_FILE_NAME).lastModified();
+        for (Cluster c : clusters) {
+            version = version * 31 + new File(BTREE_FOLDER_NAME + dictionary.name(c.getMedioid())).lastModified();
+        }
+        return version;
+    }
+
+    private static ClusterModel load() throws IOException {
+        DocumentFrequencyIndex dfIndex = new DocumentFrequencyIndex();
+        try {
+            ClusterCatalog catalog = ClusterCatalog.open();
+            Cluster[] clusters = catalog == null ? new Cluster[0] : catalog.clusters();
+            DocumentDictionary dictionary = DocumentDictionary.shared();
+            DocumentVectorStore vectors = null;
+            File storeFile = new File(DocumentVectorStore.INDEX_FILE_NAME);
+            if (clusters.length > 0 && storeFile.exists()) {
+                try {
+                    vectors = new DocumentVectorStore(DocumentVectorStore.INDEX_FILE_NAME, dictionary);
+                } catch (IOException e) {
+                    // Written by another version, every medioid is weighed from its tree
+                }
+            }
+            SparseVector[] medioids = new SparseVector[clusters.length];
+            for (int i = 0; i < clusters.length; i++) {
+                File tree = new File(BTREE_FOLDER_NAME + dictionary.name(clusters[i].getMedioid()));
+                int id = vectors == null ? -1 : vectors.fromDictionaryId(clusters[i].getMedioid());
+                if (id >= 0 && tree.lastModified() <= storeFile.lastModified()) {
+                    medioids[i] = vectors.vector(id);
+                } else if (tree.exists()) {
+                    // Not mapped, a mapping outlives close until garbage collection and a query may rewrite this tree
+                    try (BTree medioid = new BTree(tree.getPath())) {
+                        medioids[i] = SparseVector.tfIdf(medioid, dfIndex);
+                    }
+                } else {
+                    // A medioid whose tree was removed matches nothing
+                    medioids[i] = new SparseVector(new long[0], new float[0]);
+                }
+            }
+            if (vectors != null) {
+                vectors.close();
+            }
+            return new ClusterModel(clusters, medioids, dictionary, dfIndex, version(clusters, dictionary));
+        } catch (IOException | RuntimeException e) {
+            dfIndex.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the loaded clusters
+     */
+    public Cluster[] getClusters() {
+        return clusters;
+    }
+
+    /**
+     * @return the dictionary the clusters' document ids come from
+     */
+    public DocumentDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return the document frequency index the model weighs documents with, open as long as the model is current
+     */
+    public DocumentFrequencyIndex getDfIndex() {
+        return dfIndex;
+    }
+
+    /**
+     * Ranks every cluster by the cosine similarity of a document's tf-idf vector to its medioid's
+     * @param doc the document's tree
+     * @return every cluster, most similar first
+     */
+    public Match[] rank(BTree doc) {
+        return rank(doc, dfIndex);
+    }
+
+    /**
+     * Ranks every cluster by the cosine similarity of a document's tf-idf vector to its medioid's
+     * @param doc the document's tree
+     * @param dfIndex document frequencies of the corpus, used to weigh the document
+     * @return every cluster, most similar first
+     */
+    public Match[] rank(BTree doc, DocumentFrequencyIndex dfIndex) {
+        return rank(SparseVector.tfIdf(doc, dfIndex));
+    }
+
+    /**
+     * @param vector a unit length tf-idf vector, such as one from SparseVector.tfIdf
+     * @return every cluster, most similar first
+     */
+    public Match[] rank(SparseVector vector) {
+        Match[] matches = new Match[clusters.length];
+        for (int i = 0; i < clusters.length; i++) {
+            matches[i] = new Match(clusters[i], vector.dot(medioids[i]), dictionary);
+        }
+        Arrays.sort(matches, (a, b) -> Double.compare(b.score, a.score));
+        return matches;
+    }
+}
@@ -0,0 +1,331 @@
+package com.nesposi3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.nesposi3.Utils.CacheUtils.generateFileName;
+
+/**
+ * Gives every cached document a permanent int id, so the indexes and clusters can refer to documents by a
+ * fixed width id instead of by file name, and keep per document data in plain arrays indexed by it.
+ * Ids are handed out in order and never reused. Each id knows the document's tree file name and, once it has
+ * been fetched, its URL. Both directions are a hash or array lookup on the dictionary held in memory.
+ *
+ * File format:
+ *      4       4          4             4
+ *   | magic | version | record count | 0 |
+ *
+ *   records, appended in id order:
+ *         4               4            n       m
+ *   | name length | URL length | name | URL |   lengths of the UTF-8 bytes
+ *
+ * A record for a name that already has an id sets the URL of that id instead of adding one.
+ * Records are appended under a file lock and the count is written after them, so a record past the count
+ * is from an interrupted write and is overwritten. Other processes' records are picked up on the next add.
+ *
+ * Where a document's data lies inside a store is kept by that store, indexed by these ids (see
+ * DocumentSimilarity.fromDictionaryId). Stores are rebuilt on their own, so offsets kept here would go stale.
+ */
+public class DocumentDictionary implements Closeable {
+    public static final String INDEX_FILE_NAME = DocumentFrequencyIndex.INDEX_FOLDER_NAME + "documents";
+    public static final int MAGIC = 0x44494354;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static DocumentDictionary shared;
+
+    private final File file;
+    private String[] names = new String[16];
+    private String[] urls = new String[16];
+    private int size;
+    // Records read so far, and where the next one starts
+    private int records;
+    private long end = HEADER_SIZE;
+    // Open addressing table of id + 1 by name hash, 0 marking a free slot
+    private int[] table = new int[32];
+
+    /**
+     * @return the dictionary of the document cache, shared by everything in this process
+     * @throws IOException
+     */
+    public static synchronized DocumentDictionary shared() throws IOException {
+        if (shared == null) {
+            shared = new DocumentDictionary(INDEX_FILE_NAME);
+        }
+        return shared;
+    }
+
+    /**
+     * @param fileName path of the dictionary, created if it does not exist
+     * @throws IOException
+     */
+    public DocumentDictionary(String fileName) throws IOException {
+        this.file = new File(fileName);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                // Only a new file gets a header, anything else without the magic number is refused by catchUp
+                if (channel.size() == 0) {
+                    writeHeader(channel, 0);
+                }
+                catchUp(channel);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, int count) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+        head.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0).flip();
+        channel.write(head, 0);
+    }
+
+    /**
+     * Reads the records other processes appended since the last read
+     */
+    private void catchUp(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(head, 0);
+        if (head.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a document dictionary");
+        }
+        if (head.getInt(4) != VERSION) {
+            throw new IOException("Document dictionary version " + head.getInt(4) + " is not supported, expected " + VERSION);
+        }
+        int count = head.getInt(8);
+        if (count <= records) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - end));
+        while (buffer.hasRemaining() && channel.read(buffer, end + buffer.position()) >= 0) {
+            // Read to the end of the file
+        }
+        buffer.flip();
+        for (; records < count; records++) {
+            byte[] name = new byte[buffer.getInt()];
+            byte[] url = new byte[buffer.getInt()];
+            buffer.get(name).get(url);
+            put(new String(name, StandardCharsets.UTF_8), new String(url, StandardCharsets.UTF_8));
+        }
+        end += buffer.position();
+    }
+
+    /**
+     * Applies one record to the dictionary in memory
+     * @return the id of the name
+     */
+    private int put(String name, String url) {
+        int id = id(name);
+        if (id >= 0) {
+            if (!url.isEmpty()) {
+                urls[id] = url;
+            }
+            return id;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            urls = Arrays.copyOf(urls, size * 2);
+        }
+        names[size] = name;
+        urls[size] = url;
+        if ((size + 1) * 2 > table.length) {
+            table = new int[table.length * 2];
+            for (int i = 0; i < size; i++) {
+                table[slot(names[i])] = i + 1;
+            }
+        }
+        table[slot(name)] = size + 1;
+        return size++;
+    }
+
+    /**
+     * @return the slot holding name, or the free slot it would go in
+     */
+    private int slot(String name) {
+        int mask = table.length - 1;
+        int h = name.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        while (table[i] != 0 && !names[table[i] - 1].equals(name)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @param name file name of a document's tree
+     * @return its id, or -1 if it has none yet
+     */
+    public synchronized int id(String name) {
+        int entry = table[slot(name)];
+        return entry - 1;
+    }
+
+    /**
+     * @param url URL of a document
+     * @return its id, or -1 if it has none yet
+     */
+    public int idOfUrl(String url) {
+        return id(generateFileName(url));
+    }
+
+    /**
+     * Gives a document an id if it does not have one yet
+     * @param name file name of a document's tree
+     * @return the document's id
+     * @throws IOException if a new id can not be recorded
+     */
+    public int add(String name) throws IOException {
+        return add(name, "");
+    }
+
+    /**
+     * Gives a fetched document an id if it does not have one yet, and records its URL
+     * @param url URL of the document, its tree is named after it
+     * @return the document's id
+     * @throws IOException if the document can not be recorded
+     */
+    public int addUrl(String url) throws IOException {
+        return add(generateFileName(url), url);
+    }
+
+    private synchronized int add(String name, String url) throws IOException {
+        int id = id(name);
+        if (id >= 0 && (url.isEmpty() || url.equals(urls[id]))) {
+            return id;
+        }
+        return addAll(new String[]{name}, new String[]{url})[0];
+    }
+
+    /**
+     * Gives every document in names an id, recording any new ones in a single write
+     * @param names file names of documents' trees
+     * @return the id of each document
+     * @throws IOException if the new ids can not be recorded
+     */
+    public int[] addAll(String[] names) throws IOException {
+        String[] urls = new String[names.length];
+        Arrays.fill(urls, "");
+        return addAll(names, urls);
+    }
+
+    private synchronized int[] addAll(String[] newNames, String[] newUrls) throws IOException {
+        int[] ids = new int[newNames.length];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                catchUp(channel);
+                int length = 0;
+                for (int i = 0; i < newNames.length; i++) {
+                    length += 8 + 3 * (newNames[i].length() + newUrls[i].length());
+                }
+                ByteBuffer out = ByteBuffer.allocate(length);
+                int added = 0;
+                for (int i = 0; i < newNames.length; i++) {
+                    int id = id(newNames[i]);
+                    if (id >= 0 && (newUrls[i].isEmpty() || newUrls[i].equals(urls[id]))) {
+                        ids[i] = id;
+                        continue;
+                    }
+                    byte[] name = newNames[i].getBytes(StandardCharsets.UTF_8);
+                    byte[] url = newUrls[i].getBytes(StandardCharsets.UTF_8);
+                    out.putInt(name.length).putInt(url.length).put(name).put(url);
+                    ids[i] = put(newNames[i], newUrls[i]);
+                    added++;
+                }
+                if (added == 0) {
+                    return ids;
+                }
+                out.flip();
+                long position = end;
+                while (out.hasRemaining()) {
+                    position += channel.write(out, position);
+                }
+                channel.force(false);
+                records += added;
+                end = position;
+                ByteBuffer count = ByteBuffer.allocate(4);
+                count.putInt(records).flip();
+                channel.write(count, 8);
+                channel.force(false);
+            } finally {
+                lock.release();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param id id of a document
+     * @return the file name of the document's tree
+     */
+    public synchronized String name(int id) {
+        refreshFor(id);
+        return names[id];
+    }
+
+    /**
+     * @param id id of a document
+     * @return the document's URL, empty if it was only ever known by its tree
+     */
+    public synchronized String url(int id) {
+        refreshFor(id);
+        return urls[id];
+    }
+
+    /**
+     * Reads ids handed out by other processes if id is not known here yet
+     */
+    private void refreshFor(int id) {
+        if (id < size) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            catchUp(channel);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (id >= size) {
+            throw new IndexOutOfBoundsException("No document has id " + id + ", " + size + " ids were handed out");
+        }
+    }
+
+    /**
+     * @param ids dictionary ids, each at most once
+     * @return for every dictionary id up to the largest in ids, its index in ids or -1
+     */
+    public static int[] inverse(int[] ids) {
+        int max = -1;
+        for (int id : ids) {
+            max = Math.max(max, id);
+        }
+        int[] inverse = new int[max + 1];
+        Arrays.fill(inverse, -1);
+        for (int i = 0; i < ids.length; i++) {
+            inverse[ids[i]] = i;
+        }
+        return inverse;
+    }
+
+    /**
+     * @return the number of ids handed out
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        // Every record is written as it is added
+    }
+}
@@ -0,0 +1,131 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.LongIntCounter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.nesposi3.Utils.BTreeUtils.BTREE_FOLDER_NAME;
+
+/**
+ * Corpus wide document frequencies, the number of cached documents each word appears in.
+ * Stored as a BTree keyed by word hash, kept outside the document folder so it is never mistaken for a document.
+ * It is updated whenever a document tree is written, so IDF is one lookup instead of a search in every document.
+ * Its header records the TermHasher of the corpus.
+ */
+public class DocumentFrequencyIndex implements Closeable {
+    public static final String INDEX_FOLDER_NAME = "storage/index/";
+    public static final String INDEX_FILE_NAME = INDEX_FOLDER_NAME + "df";
+    private final BTree tree;
+    private final String documentFolder;
+
+    /**
+     * Opens the index of the document cache, building it from the cached trees if it does not exist yet
+     * @throws IOException if the index can not be opened or built
+     */
+    public DocumentFrequencyIndex() throws IOException {
+        this(INDEX_FILE_NAME, BTREE_FOLDER_NAME);
+    }
+
+    /**
+     * @param fileName path of the index tree
+     * @param documentFolder folder holding one tree per document
+     * @throws IOException if the index can not be opened or built
+     */
+    public DocumentFrequencyIndex(String fileName, String documentFolder) throws IOException {
+        File file = new File(fileName);
+        boolean exists = file.exists() && file.length() > 0;
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        this.documentFolder = documentFolder;
+        this.tree = exists ? new BTree(fileName) : rebuild(fileName, documentFolder);
+    }
+
+    /**
+     * Builds a fresh index by counting the words of every tree in the document folder
+     */
+    private static BTree rebuild(String fileName, String documentFolder) throws IOException {
+        File[] files = new File(documentFolder).listFiles();
+        // Grows with the distinct words of the corpus, not with the total number of postings
+        LongIntCounter counter = new LongIntCounter();
+        // Keep hashing the way the cached documents were, a new corpus gets the default
+        TermHasher hasher = TermHasher.defaultHasher();
+        if (files != null) {
+            for (File f : files) {
+                try (BTree doc = BTree.openReadOnly(f.getPath())) {
+                    hasher = doc.termHasher();
+                    BTreeCursor cursor = doc.cursor();
+                    while (cursor.next()) {
+                        if (cursor.frequency() > 0) {
+                            counter.increment(cursor.key());
+                        }
+                    }
+                }
+            }
+        }
+        long[] terms = new long[counter.size()];
+        int[] counts = new int[terms.length];
+        counter.drainSorted(terms, counts);
+        return BTree.bulkLoad(fileName, terms, counts, hasher);
+    }
+
+    /**
+     * @return the hasher of the corpus, every document tree is hashed with it so they stay comparable
+     */
+    public TermHasher termHasher() {
+        return tree.termHasher();
+    }
+
+    /**
+     * Records that a document's words changed
+     * @param oldTerms sorted words of the previous version of the document, empty if it is new
+     * @param newTerms sorted words of the document as it is now
+     */
+    public void replaceDocument(long[] oldTerms, long[] newTerms) {
+        long[] keys = new long[oldTerms.length + newTerms.length];
+        int[] deltas = new int[keys.length];
+        System.arraycopy(oldTerms, 0, keys, 0, oldTerms.length);
+        Arrays.fill(deltas, 0, oldTerms.length, -1);
+        System.arraycopy(newTerms, 0, keys, oldTerms.length, newTerms.length);
+        Arrays.fill(deltas, oldTerms.length, deltas.length, 1);
+        tree.applyDeltas(keys, deltas);
+    }
+
+    /**
+     * @param term hash of a word
+     * @return the number of cached documents containing it
+     */
+    public int documentFrequency(long term) {
+        return tree.search(term);
+    }
+
+    /**
+     * @return the number of cached documents
+     */
+    public int documentCount() {
+        String[] names = new File(documentFolder).list();
+        return names == null ? 0 : names.length;
+    }
+
+    /**
+     * IDF helps determine how rare a word is in the corpus, with more rarity yielding a higher value
+     * @param term hash of a word
+     * @param documentCount number of documents in the corpus
+     * @return log(documentCount / documentFrequency), or 0 if no document has the word
+     */
+    public double idf(long term, int documentCount) {
+        int df = documentFrequency(term);
+        if (df > 0) {
+            return Math.log((double) documentCount / df);
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+}
@@ -0,0 +1,42 @@
+package com.nesposi3;
+
+/**
+ * Pairwise similarity between the documents of the cache, addressed by a dense id
+ */
+public interface DocumentSimilarity {
+    /**
+     * @return the number of documents, ids run from 0 to this count - 1
+     */
+    int documentCount();
+
+    /**
+     * @param id id of a document
+     * @return the file name of the document's tree
+     */
+    String documentName(int id);
+
+    /**
+     * @param name file name of a document's tree
+     * @return its id, or -1 if the document is unknown
+     */
+    int documentId(String name);
+
+    /**
+     * @param id id of a document
+     * @return the document's DocumentDictionary id
+     */
+    int dictionaryId(int id);
+
+    /**
+     * @param dictionaryId DocumentDictionary id of a document
+     * @return its id here, or -1 if the document is unknown
+     */
+    int fromDictionaryId(int dictionaryId);
+
+    /**
+     * @param a id of the first document
+     * @param b id of the second document
+     * @return the cosine similarity of the two documents
+     */
+    double similarity(int a, int b);
+}
@@ -0,0 +1,147 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.LongIntCounter;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+/**
+ * Splits a page into words in one pass over its text nodes, without building the page's text.
+ * Each word is hashed where it lies in its text node and handed to a consumer with a frequency of 1.
+ * Words are separated where Element.text() would put a delimiter or whitespace: at the delimiters in
+ * DELIMITERS, at whitespace, and at the start of block elements and line breaks. Empty words are skipped.
+ * A word only has to be copied when it runs across two text nodes or contains a character text() drops.
+ */
+public class DocumentTokenizer implements NodeVisitor {
+    public static final String DELIMITERS = " .!?@[]/()-—,\"'";
+    private static final byte WORD = 0;
+    private static final byte DELIMITER = 1;
+    // Dropped from the text, the word goes on after it
+    private static final byte INVISIBLE = 2;
+    // Kind of every char up to the last delimiter, chars past it are words
+    private static final byte[] KINDS = new byte[0x2015];
+
+    static {
+        for (char c : DELIMITERS.toCharArray()) {
+            KINDS[c] = DELIMITER;
+        }
+        // Whitespace that Element.text() turns into spaces
+        for (char c : new char[]{'\t', '\n', '\f', '\r', '\u00a0'}) {
+            KINDS[c] = DELIMITER;
+        }
+        // Soft hyphen and zero width space
+        KINDS['\u00ad'] = INVISIBLE;
+        KINDS['\u200b'] = INVISIBLE;
+    }
+
+    private final TermHasher hasher;
+    private final KeyFreqConsumer consumer;
+    // The word carried over from an earlier text node, or that had a character dropped
+    private final StringBuilder pending = new StringBuilder();
+
+    /**
+     * @param hasher hashes each word
+     * @param consumer receives the hash of every word, with a frequency of 1
+     */
+    public DocumentTokenizer(TermHasher hasher, KeyFreqConsumer consumer) {
+        this.hasher = hasher;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Feeds every word of a page, or part of one, to the consumer
+     * @param root the document or element to read
+     */
+    public void tokenize(Node root) {
+        NodeTraversor.traverse(this, root);
+        endWord();
+    }
+
+    /**
+     * Counts every word of a page, or part of one
+     * @param root the document or element to read
+     * @param hasher hashes each word
+     * @param counter receives the count of every word, left empty if reading the page fails
+     */
+    public static void count(Node root, TermHasher hasher, LongIntCounter counter) {
+        try {
+            new DocumentTokenizer(hasher, counter::add).tokenize(root);
+        } catch (RuntimeException | Error e) {
+            // Do not count this page's words into the next one
+            counter.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Feeds every word of plain text to the consumer
+     * @param text the text to read
+     */
+    public void tokenize(CharSequence text) {
+        scan(text);
+        endWord();
+    }
+
+    @Override
+    public void head(Node node, int depth) {
+        if (node instanceof TextNode) {
+            scan(((TextNode) node).getWholeText());
+        } else if (node instanceof Element && (((Element) node).isBlock() || ((Element) node).normalName().equals("br"))) {
+            endWord();
+        }
+    }
+
+    @Override
+    public void tail(Node node, int depth) {
+        if (node instanceof Element && ((Element) node).isBlock() && node.nextSibling() instanceof TextNode) {
+            endWord();
+        }
+    }
+
+    private static byte kind(char c) {
+        return c < KINDS.length ? KINDS[c] : WORD;
+    }
+
+    private void scan(CharSequence text) {
+        // Start of the word being read in place, -1 if there is none
+        int start = -1;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            byte kind = kind(c);
+            if (kind == DELIMITER) {
+                // A word is only read in place while nothing is pending
+                if (start >= 0) {
+                    consumer.accept(hasher.hash(text, start, i), 1);
+                    start = -1;
+                }
+                endWord();
+            } else if (kind == INVISIBLE) {
+                if (start >= 0) {
+                    pending.append(text, start, i);
+                    start = -1;
+                }
+            } else if (pending.length() > 0) {
+                pending.append(c);
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        if (start >= 0) {
+            // The word may go on in the next text node
+            pending.append(text, start, length);
+        }
+    }
+
+    /**
+     * Emits the carried over word, if any
+     */
+    private void endWord() {
+        if (pending.length() > 0) {
+            consumer.accept(hasher.hash(pending, 0, pending.length()), 1);
+            pending.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.LongIntCounter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.nesposi3.Utils.BTreeUtils.BTREE_FOLDER_NAME;
+
+/**
+ * Every cached document as a unit length tf-idf vector, in one memory mapped file.
+ * Cosine similarity between two documents is then a sparse dot product over the mapping.
+ * IDF depends on the whole corpus, so any change to the corpus rewrites the file, which is one sequential pass.
+ *
+ * File format:
+ *      4       4          4         4           8               8               8               8
+ *   | magic | version | doc count | 0 | ids offset | offsets offset | terms offset | weights offset |
+ *
+ *   ids: the DocumentDictionary id of each document as an int, in id order
+ *   offsets: (doc count + 1) ints, document i's entries are [offsets[i], offsets[i + 1])
+ *   terms: every document's word hashes as longs, ascending within a document
+ *   weights: the float weight of each entry in terms
+ */
+public class DocumentVectorStore implements DocumentSimilarity, Closeable {
+    public static final String INDEX_FILE_NAME = DocumentFrequencyIndex.INDEX_FOLDER_NAME + "vectors";
+    public static final int MAGIC = 0x56454354;
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 48;
+
+    private final MappedByteBuffer mapped;
+    private final DocumentDictionary dictionary;
+    private final int docCount;
+    private final int[] dictionaryIds;
+    private final int[] fromDictionaryIds;
+    private final int offsetsOffset;
+    private final int termsOffset;
+    private final int weightsOffset;
+
+    /**
+     * Maps an existing store of the document cache
+     * @param fileName path of the store
+     * @throws IOException if the file can not be mapped or is not a vector store
+     */
+    public DocumentVectorStore(String fileName) throws IOException {
+        this(fileName, DocumentDictionary.shared());
+    }
+
+    /**
+     * Maps an existing store
+     * @param fileName path of the store
+     * @param dictionary the dictionary the store was built with
+     * @throws IOException if the file can not be mapped or is not a vector store
+     */
+    public DocumentVectorStore(String fileName, DocumentDictionary dictionary) throws IOException {
+        this.dictionary = dictionary;
+        try (FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException(fileName + " is not a document vector store");
+        }
+        if (mapped.getInt(4) != VERSION) {
+            throw new IOException("Vector store version " + mapped.getInt(4) + " is not supported, expected " + VERSION);
+        }
+        this.docCount = mapped.getInt(8);
+        this.dictionaryIds = new int[docCount];
+        int idsOffset = (int) mapped.getLong(16);
+        for (int i = 0; i < docCount; i++) {
+            dictionaryIds[i] = mapped.getInt(idsOffset + i * 4);
+        }
+        this.fromDictionaryIds = DocumentDictionary.inverse(dictionaryIds);
+        this.offsetsOffset = (int) mapped.getLong(24);
+        this.termsOffset = (int) mapped.getLong(32);
+        this.weightsOffset = (int) mapped.getLong(40);
+    }
+
+    /**
+     * Opens the vectors of the document cache, rebuilding them first if a document was added or rewritten since
+     * @return the open store
+     * @throws IOException
+     */
+    public static DocumentVectorStore open() throws IOException {
+        File file = new File(INDEX_FILE_NAME);
+        if (isStale(file, BTREE_FOLDER_NAME)) {
+            build(BTREE_FOLDER_NAME, INDEX_FILE_NAME);
+        }
+        return new DocumentVectorStore(INDEX_FILE_NAME);
+    }
+
+    private static boolean isStale(File file, String documentFolder) throws IOException {
+        if (!file.exists()) {
+            return true;
+        }
+        File[] files = new File(documentFolder).listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        ByteBuffer head = ByteBuffer.allocate(12);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.read(head, 0);
+        }
+        if (head.getInt(4) != VERSION || head.getInt(8) != files.length) {
+            return true;
+        }
+        long built = file.lastModified();
+        for (File f : files) {
+            if (f.lastModified() > built) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the vectors of every tree in the cache's folder, replacing any existing store
+     * @param documentFolder folder holding one tree per document, ids are given in file name order
+     * @param fileName path of the store to write
+     * @throws IOException
+     */
+    public static void build(String documentFolder, String fileName) throws IOException {
+        build(documentFolder, fileName, DocumentDictionary.shared());
+    }
+
+    /**
+     * Builds the vectors of every tree in a folder, replacing any existing store
+     * @param documentFolder folder holding one tree per document, ids are given in file name order
+     * @param fileName path of the store to write
+     * @param dictionary gives the documents their dictionary ids
+     * @throws IOException
+     */
+    public static void build(String documentFolder, String fileName, DocumentDictionary dictionary) throws IOException {
+        File[] files = new File(documentFolder).listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        int n = files.length;
+        // Read every document once, keeping its words and term frequencies
+        int[] offsets = new int[n + 1];
+        long[] terms = new long[1024];
+        double[] tfs = new double[1024];
+        int size = 0;
+        for (int d = 0; d < n; d++) {
+            try (BTree tree = BTree.openReadOnly(files[d].getPath())) {
+                double totalWords = tree.totalWordCount();
+                BTreeCursor cursor = tree.cursor();
+                while (cursor.next()) {
+                    if (cursor.frequency() == 0) {
+                        continue;
+                    }
+                    if (size == terms.length) {
+                        terms = Arrays.copyOf(terms, size * 2);
+                        tfs = Arrays.copyOf(tfs, size * 2);
+                    }
+                    terms[size] = cursor.key();
+                    tfs[size] = cursor.frequency() / totalWords;
+                    size++;
+                }
+            }
+            offsets[d + 1] = size;
+        }
+        // Document frequency of each distinct word
+        LongIntCounter df = new LongIntCounter();
+        for (int i = 0; i < size; i++) {
+            df.increment(terms[i]);
+        }
+
+        String[] names = new String[n];
+        for (int d = 0; d < n; d++) {
+            names[d] = files[d].getName();
+        }
+        int[] ids = dictionary.addAll(names);
+        int idsOffset = HEADER_SIZE;
+        int offsetsOffset = idsOffset + n * 4;
+        int termsOffset = offsetsOffset + (n + 1) * 4;
+        int weightsOffset = termsOffset + size * 8;
+        ByteBuffer out = ByteBuffer.allocate(weightsOffset + size * 4);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(n);
+        out.putInt(0);
+        out.putLong(idsOffset);
+        out.putLong(offsetsOffset);
+        out.putLong(termsOffset);
+        out.putLong(weightsOffset);
+        for (int d = 0; d < n; d++) {
+            out.putInt(ids[d]);
+        }
+        for (int d = 0; d <= n; d++) {
+            out.putInt(offsets[d]);
+        }
+        for (int i = 0; i < size; i++) {
+            out.putLong(terms[i]);
+        }
+        for (int d = 0; d < n; d++) {
+            double norm = 0;
+            for (int i = offsets[d]; i < offsets[d + 1]; i++) {
+                tfs[i] *= Math.log((double) n / df.get(terms[i]));
+                norm += tfs[i] * tfs[i];
+            }
+            norm = Math.sqrt(norm);
+            for (int i = offsets[d]; i < offsets[d + 1]; i++) {
+                out.putFloat(norm == 0 ? 0 : (float) (tfs[i] / norm));
+            }
+        }
+
+        // Write beside the old store and swap it in, so an open store is never half written
+        File target = new File(fileName);
+        if (target.getParentFile() != null) {
+            target.getParentFile().mkdirs();
+        }
+        File temp = new File(fileName + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of documents in the store
+     */
+    @Override
+    public int documentCount() {
+        return docCount;
+    }
+
+    /**
+     * @param id id of a document
+     * @return the file name of the document's tree
+     */
+    @Override
+    public String documentName(int id) {
+        return dictionary.name(dictionaryIds[id]);
+    }
+
+    /**
+     * @param name file name of a document's tree
+     * @return its id, or -1 if it is not in the store
+     */
+    @Override
+    public int documentId(String name) {
+        return fromDictionaryId(dictionary.id(name));
+    }
+
+    @Override
+    public int dictionaryId(int id) {
+        return dictionaryIds[id];
+    }
+
+    @Override
+    public int fromDictionaryId(int dictionaryId) {
+        return dictionaryId >= 0 && dictionaryId < fromDictionaryIds.length ? fromDictionaryIds[dictionaryId] : -1;
+    }
+
+    /**
+     * @return the dictionary the store's documents are in
+     */
+    public DocumentDictionary getDictionary() {
+        return dictionary;
+    }
+
+    private int start(int id) {
+        return mapped.getInt(offsetsOffset + id * 4);
+    }
+
+    private long term(int entry) {
+        return mapped.getLong(termsOffset + entry * 8);
+    }
+
+    private float weight(int entry) {
+        return mapped.getFloat(weightsOffset + entry * 4);
+    }
+
+    /**
+     * Cosine similarity of two stored documents
+     * @param a id of the first document
+     * @param b id of the second document
+     * @return the dot product of their unit vectors
+     */
+    @Override
+    public double similarity(int a, int b) {
+        int i = start(a);
+        int endA = start(a + 1);
+        int j = start(b);
+        int endB = start(b + 1);
+        double total = 0;
+        while (i < endA && j < endB) {
+            long termA = term(i);
+            long termB = term(j);
+            if (termA < termB) {
+                i++;
+            } else if (termA > termB) {
+                j++;
+            } else {
+                total += (double) weight(i++) * weight(j++);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Cosine similarity of a unit vector and a stored document
+     * @param vector a normalized vector, such as one from SparseVector.tfIdf
+     * @param id id of the stored document
+     * @return the dot product of the two
+     */
+    public double similarity(SparseVector vector, int id) {
+        int i = 0;
+        int j = start(id);
+        int end = start(id + 1);
+        double total = 0;
+        while (i < vector.terms.length && j < end) {
+            long termB = term(j);
+            if (vector.terms[i] < termB) {
+                i++;
+            } else if (vector.terms[i] > termB) {
+                j++;
+            } else {
+                total += (double) vector.weights[i++] * weight(j++);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param id id of a document
+     * @return a copy of the document's vector
+     */
+    public SparseVector vector(int id) {
+        int from = start(id);
+        int length = start(id + 1) - from;
+        long[] terms = new long[length];
+        float[] weights = new float[length];
+        for (int i = 0; i < length; i++) {
+            terms[i] = term(from + i);
+            weights[i] = weight(from + i);
+        }
+        return new SparseVector(terms, weights);
+    }
+
+    @Override
+    public void close() {
+        // The mapping is released once the store is no longer referenced
+    }
+}
@@ -43,9 +43,13 @@ public class GuiMain extends Application {
                 String url = urlField.getText();
                 try {
                     String tree  = CacheUtils.titleFromFileName(ClusteringUtils.findClosestTree(url));
-                    String cluster = ClusteringUtils.findClosestCluster(url).toString();
+                    // Every cluster, most similar first
+                    StringBuilder clusters = new StringBuilder();
+                    for (ClusterModel.Match match : ClusteringUtils.rankClusters(url)) {
+                        clusters.append(match).append("\n");
+                    }
                     closest.setText(tree);
-                    clusterArea.setText(cluster);
+                    clusterArea.setText(clusters.toString());
                 } catch (ParseException e) {
                     e.printStackTrace();
                 } catch (IOException e) {
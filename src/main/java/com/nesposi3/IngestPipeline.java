@@ -0,0 +1,314 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.CacheUtils;
+import com.nesposi3.Utils.LongIntCounter;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Fills the document cache from a list of seed pages and the pages they link to, in four stages:
+ * fetch (or load from storage/html/ when offline) -> parse -> tokenize and count -> B-tree build.
+ * Each stage runs on its own threads and hands pages to the next through a bounded queue, so a fast stage
+ * blocks once the queue after it is full instead of piling up documents in memory.
+ * Fetching and building wait on the network and the disk and run on cached pools, parsing and counting
+ * are CPU bound and run on fixed pools.
+ *
+ * Every page is ingested once per run, however many pages link to it, so no two builders write the same tree.
+ * The document frequency index is opened once for the whole run and updated by one builder at a time.
+ */
+public class IngestPipeline {
+    //This pattern excludes all files, special wikipedia pages, and disambiguation pages
+    public static final Pattern URL_PATTERN = Pattern.compile("\\/wiki\\/((?!((Wikipedia:)|(File:)|(Help:))).)*(?<!(_\\(disambiguation\\)))");
+    // Linked pages followed from each seed page
+    public static final int LINKS_PER_PAGE = 10;
+
+    /**
+     * Settings of a run, the defaults can be changed with -Dingest.<field>=<value>
+     */
+    public static class Config {
+        // Load pages only from storage/html/, never from the network
+        public boolean offline = Boolean.getBoolean("ingest.offline");
+        public int fetchThreads = Integer.getInteger("ingest.fetchThreads", 8);
+        public int parseThreads = Integer.getInteger("ingest.parseThreads", Runtime.getRuntime().availableProcessors());
+        public int countThreads = Integer.getInteger("ingest.countThreads", Runtime.getRuntime().availableProcessors());
+        public int buildThreads = Integer.getInteger("ingest.buildThreads", 2);
+        // Pages each queue between two stages holds before the stage feeding it blocks
+        public int queueCapacity = Integer.getInteger("ingest.queueCapacity", 32);
+    }
+
+    /**
+     * Counters of one stage, updated by its threads as pages go through
+     */
+    public static class Stage {
+        public final String name;
+        public final int threads;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        // Time spent working on pages, summed over the stage's threads
+        private final AtomicLong busyNanos = new AtomicLong();
+        // Time spent waiting for room in the next stage's queue
+        private final AtomicLong blockedNanos = new AtomicLong();
+
+        Stage(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        public long processed() {
+            return processed.get();
+        }
+
+        public long failed() {
+            return failed.get();
+        }
+
+        public long busyNanos() {
+            return busyNanos.get();
+        }
+
+        public long blockedNanos() {
+            return blockedNanos.get();
+        }
+
+        /**
+         * @param wallNanos length of the run
+         * @return the stage's counters and its throughput over the run
+         */
+        public String toString(long wallNanos) {
+            double wall = wallNanos / 1e9;
+            double busy = busyNanos() / 1e9;
+            return String.format("%-6s %2d threads  %6d pages  %3d failed  %8.1f pages/s  busy %6.2fs  blocked %6.2fs",
+                    name, threads, processed(), failed(), wall > 0 ? processed() / wall : 0, busy, blockedNanos() / 1e9);
+        }
+    }
+
+    /**
+     * A page on its way through the stages, each stage fills in what the next one needs and drops what it used
+     */
+    private static class Page {
+        final String url;
+        final String name;
+        // Seed pages have their links followed
+        final boolean seed;
+        String html;
+        Document document;
+        long[] keys;
+        int[] freqs;
+
+        Page(String url, boolean seed) {
+            this.url = url;
+            this.name = CacheUtils.generateFileName(url);
+            this.seed = seed;
+        }
+    }
+
+    private interface Step {
+        void process(Page page) throws IOException;
+    }
+
+    private final Config config;
+    private final SnapshotStore snapshots;
+    public final Stage fetch;
+    public final Stage parse;
+    public final Stage count;
+    public final Stage build;
+    // Pages waiting to be fetched, seeds and the links found in them. Only urls wait here, so it is not bounded,
+    // which also keeps parsers that add links from blocking on fetchers that wait for parsers
+    private final BlockingQueue<Page> frontier = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Page> fetched;
+    private final BlockingQueue<Page> parsed;
+    private final BlockingQueue<Page> counted;
+    // File names of every page scheduled this run
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    // Pages scheduled but not yet built or failed, plus one while the seeds are being scheduled
+    private final AtomicInteger pending = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    // One counter per counting thread, drained after every page so its table is reused
+    private final ThreadLocal<LongIntCounter> counters = ThreadLocal.withInitial(LongIntCounter::new);
+    private DocumentFrequencyIndex dfIndex;
+    private TermHasher hasher;
+    private long wallNanos;
+
+    public IngestPipeline(Config config) {
+        this.config = config;
+        this.snapshots = new SnapshotStore(SnapshotStore.HTML_FOLDER_NAME, config.offline);
+        this.fetch = new Stage("fetch", config.fetchThreads);
+        this.parse = new Stage("parse", config.parseThreads);
+        this.count = new Stage("count", config.countThreads);
+        this.build = new Stage("build", config.buildThreads);
+        this.fetched = new ArrayBlockingQueue<>(config.queueCapacity);
+        this.parsed = new ArrayBlockingQueue<>(config.queueCapacity);
+        this.counted = new ArrayBlockingQueue<>(config.queueCapacity);
+    }
+
+    /**
+     * Ingests the seed pages and up to LINKS_PER_PAGE pages linked from each, returning once every page is built.
+     * A page that can not be fetched or built is reported and skipped
+     * @param seeds urls of the seed pages
+     * @throws IOException if the document frequency index can not be opened
+     */
+    public void run(List<String> seeds) throws IOException {
+        long start = System.nanoTime();
+        new File(CacheUtils.DIRECTORY_NAME).mkdirs();
+        ExecutorService fetchPool = Executors.newCachedThreadPool();
+        ExecutorService parsePool = Executors.newFixedThreadPool(config.parseThreads);
+        ExecutorService countPool = Executors.newFixedThreadPool(config.countThreads);
+        ExecutorService buildPool = Executors.newCachedThreadPool();
+        try (DocumentFrequencyIndex index = new DocumentFrequencyIndex()) {
+            this.dfIndex = index;
+            // Hash the way the rest of the corpus was hashed
+            this.hasher = index.termHasher();
+            startStage(fetchPool, fetch, frontier, fetched, this::fetch);
+            startStage(parsePool, parse, fetched, parsed, this::parse);
+            startStage(countPool, count, parsed, counted, this::count);
+            startStage(buildPool, build, counted, null, this::build);
+            pending.incrementAndGet();
+            for (String seed : seeds) {
+                if (!seed.trim().isEmpty()) {
+                    schedule(seed.trim(), true);
+                }
+            }
+            finish();
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Ingest was interrupted");
+        } finally {
+            // Every worker is waiting on an empty queue by now, unless the run was interrupted
+            for (ExecutorService pool : new ExecutorService[]{fetchPool, parsePool, countPool, buildPool}) {
+                pool.shutdownNow();
+            }
+            for (ExecutorService pool : new ExecutorService[]{fetchPool, parsePool, countPool, buildPool}) {
+                try {
+                    pool.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            wallNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return the counters of every stage over the last run
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder(String.format("Ingested in %.2fs%n", wallNanos / 1e9));
+        for (Stage stage : new Stage[]{fetch, parse, count, build}) {
+            sb.append(stage.toString(wallNanos)).append(System.lineSeparator());
+        }
+        sb.append(snapshots).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    private void schedule(String url, boolean seed) {
+        Page page = new Page(url, seed);
+        if (scheduled.add(page.name)) {
+            pending.incrementAndGet();
+            frontier.add(page);
+        }
+    }
+
+    private void finish() {
+        if (pending.decrementAndGet() == 0) {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Starts a stage's threads, each takes a page from in, processes it and puts it on out until it is interrupted
+     * @param out the next stage's queue, null for the last stage
+     */
+    private void startStage(ExecutorService pool, Stage stage, BlockingQueue<Page> in, BlockingQueue<Page> out, Step step) {
+        for (int t = 0; t < stage.threads; t++) {
+            pool.execute(() -> {
+                try {
+                    while (true) {
+                        Page page = in.take();
+                        long begin = System.nanoTime();
+                        boolean ok = true;
+                        try {
+                            step.process(page);
+                        } catch (Throwable e) {
+                            // Errors too, such as a stack overflow on a deeply nested page. A worker that died here
+                            // would never finish its page, and run would wait for it forever
+                            System.err.println(stage.name + " failed for " + page.url);
+                            e.printStackTrace();
+                            ok = false;
+                        }
+                        long end = System.nanoTime();
+                        stage.busyNanos.addAndGet(end - begin);
+                        if (!ok) {
+                            stage.failed.incrementAndGet();
+                            finish();
+                        } else if (out == null) {
+                            stage.processed.incrementAndGet();
+                            finish();
+                        } else {
+                            stage.processed.incrementAndGet();
+                            out.put(page);
+                            stage.blockedNanos.addAndGet(System.nanoTime() - end);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // The pipeline is shutting down
+                }
+            });
+        }
+    }
+
+    private void fetch(Page page) throws IOException {
+        page.html = snapshots.fetch(page.url);
+    }
+
+    private void parse(Page page) {
+        // The URL as base URI makes it the document's location, which the dictionary records
+        page.document = Jsoup.parse(page.html, page.url);
+        page.html = null;
+        if (page.seed) {
+            int numLinks = 0;
+            for (Element e : page.document.select("a")) {
+                if (numLinks >= LINKS_PER_PAGE) {
+                    break;
+                }
+                String link = e.attr("href");
+                if (URL_PATTERN.matcher(link).matches()) {
+                    numLinks++;
+                    // Scheduled before this page finishes, so pending never drops to 0 while links are being added
+                    schedule(CacheUtils.BASE_URI + link, false);
+                }
+            }
+        }
+    }
+
+    private void count(Page page) {
+        LongIntCounter counter = counters.get();
+        DocumentTokenizer.count(page.document, hasher, counter);
+        page.document = null;
+        page.keys = new long[counter.size()];
+        page.freqs = new int[page.keys.length];
+        counter.drainSorted(page.keys, page.freqs);
+    }
+
+    private void build(Page page) throws IOException {
+        CacheUtils.writeTermsToBtree(page.name, page.url, page.keys, page.freqs, dfIndex).close();
+    }
+}
@@ -0,0 +1,609 @@
+package com.nesposi3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.nesposi3.Utils.BTreeUtils.BTREE_FOLDER_NAME;
+import static com.nesposi3.Utils.BTreeUtils.sortParallel;
+
+/**
+ * Maps every word of the corpus to the documents containing it, so a query only touches
+ * documents that share at least one word with it.
+ * Built from the document trees in one pass and memory mapped read only, documents cached after the
+ * index was built are not searched until it is rebuilt.
+ *
+ * File format:
+ *      4       4          4            4             8               8                8
+ *   | magic | version | doc count | term count | terms offset | ids offset | postings offset |
+ *
+ *   documents, 24 bytes each in id order:  | norm | total word count | tf-idf norm |
+ *   ids: the DocumentDictionary id of each document as an int, in id order
+ *   terms, 32 bytes each in key order:
+ *      | term | postings offset | postings length | document frequency | max frequency weight | max tf-idf weight |
+ *   postings: per term, a (doc id gap, frequency) pair per document, both as varints
+ *
+ * The max weights are upper bounds on what the term contributes to any document's score, used to skip
+ * documents that can not make the top k (MaxScore).
+ */
+public class InvertedIndex implements Closeable {
+    public static final String INDEX_FILE_NAME = DocumentFrequencyIndex.INDEX_FOLDER_NAME + "postings";
+    public static final int MAGIC = 0x494e5658;
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final int DOC_ENTRY_SIZE = 24;
+    private static final int TERM_ENTRY_SIZE = 32;
+
+    /**
+     * How each document's frequencies are weighted before the cosine is taken
+     */
+    public enum Weighting {
+        // Raw word frequencies
+        FREQUENCY,
+        // Term frequency times inverse document frequency
+        TF_IDF
+    }
+
+    private final MappedByteBuffer mapped;
+    private final DocumentDictionary dictionary;
+    private final int docCount;
+    private final int termCount;
+    private final int termsOffset;
+    private final int[] dictionaryIds;
+    private final int[] fromDictionaryIds;
+
+    /**
+     * Maps an existing index file of the document cache
+     * @param fileName path of the index
+     * @throws IOException if the file can not be mapped or is not an index
+     */
+    public InvertedIndex(String fileName) throws IOException {
+        this(fileName, DocumentDictionary.shared());
+    }
+
+    /**
+     * Maps an existing index file
+     * @param fileName path of the index
+     * @param dictionary the dictionary the index was built with
+     * @throws IOException if the file can not be mapped or is not an index
+     */
+    public InvertedIndex(String fileName, DocumentDictionary dictionary) throws IOException {
+        this.dictionary = dictionary;
+        try (FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException(fileName + " is not an inverted index");
+        }
+        if (mapped.getInt(4) != VERSION) {
+            throw new IOException("Inverted index version " + mapped.getInt(4) + " is not supported, expected " + VERSION);
+        }
+        this.docCount = mapped.getInt(8);
+        this.termCount = mapped.getInt(12);
+        this.termsOffset = (int) mapped.getLong(16);
+        this.dictionaryIds = new int[docCount];
+        int idsOffset = (int) mapped.getLong(24);
+        for (int i = 0; i < docCount; i++) {
+            dictionaryIds[i] = mapped.getInt(idsOffset + i * 4);
+        }
+        this.fromDictionaryIds = DocumentDictionary.inverse(dictionaryIds);
+    }
+
+    /**
+     * Opens the index of the document cache, building it first if it does not exist or is of an older version
+     * @return the open index
+     * @throws IOException
+     */
+    public static InvertedIndex open() throws IOException {
+        File file = new File(INDEX_FILE_NAME);
+        if (!file.exists() || readVersion(file) != VERSION) {
+            build(BTREE_FOLDER_NAME, INDEX_FILE_NAME);
+        }
+        return new InvertedIndex(INDEX_FILE_NAME);
+    }
+
+    private static int readVersion(File file) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(8);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.read(head, 0);
+        }
+        return head.getInt(4);
+    }
+
+    /**
+     * Builds an index of every tree in the cache's folder, replacing any existing index
+     * @param documentFolder folder holding one tree per document, ids are given in file name order
+     * @param fileName path of the index to write
+     * @throws IOException
+     */
+    public static void build(String documentFolder, String fileName) throws IOException {
+        build(documentFolder, fileName, DocumentDictionary.shared());
+    }
+
+    /**
+     * Builds an index of every tree in a folder, replacing any existing index
+     * @param documentFolder folder holding one tree per document, ids are given in file name order
+     * @param fileName path of the index to write
+     * @param dictionary gives the documents their dictionary ids
+     * @throws IOException
+     */
+    public static void build(String documentFolder, String fileName, DocumentDictionary dictionary) throws IOException {
+        File[] files = new File(documentFolder).listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        int n = files.length;
+        double[] norms = new double[n];
+        long[] totals = new long[n];
+        // Every (term, doc, frequency) of the corpus, collected in doc order
+        long[] terms = new long[1024];
+        int[] refs = new int[1024];
+        int[] docs = new int[1024];
+        int[] freqs = new int[1024];
+        int size = 0;
+        for (int d = 0; d < n; d++) {
+            try (BTree tree = BTree.openReadOnly(files[d].getPath())) {
+                norms[d] = tree.norm();
+                totals[d] = tree.totalWordCount();
+                BTreeCursor cursor = tree.cursor();
+                while (cursor.next()) {
+                    if (cursor.frequency() == 0) {
+                        continue;
+                    }
+                    if (size == terms.length) {
+                        terms = Arrays.copyOf(terms, size * 2);
+                        refs = Arrays.copyOf(refs, size * 2);
+                        docs = Arrays.copyOf(docs, size * 2);
+                        freqs = Arrays.copyOf(freqs, size * 2);
+                    }
+                    terms[size] = cursor.key();
+                    refs[size] = size;
+                    docs[size] = d;
+                    freqs[size] = cursor.frequency();
+                    size++;
+                }
+            }
+        }
+        terms = Arrays.copyOf(terms, size);
+        refs = Arrays.copyOf(refs, size);
+        sortParallel(terms, refs);
+        // Postings were collected in doc order, so sorting the refs of a term puts its docs in order
+        int distinct = 0;
+        for (int i = 0; i < size; ) {
+            int end = i + 1;
+            while (end < size && terms[end] == terms[i]) {
+                end++;
+            }
+            Arrays.sort(refs, i, end);
+            distinct++;
+            i = end;
+        }
+        // The tf-idf norms need every term's document frequency first
+        double[] tfIdfNorms = new double[n];
+        for (int i = 0; i < size; ) {
+            int end = i + 1;
+            while (end < size && terms[end] == terms[i]) {
+                end++;
+            }
+            double idf = idf(n, end - i);
+            for (int j = i; j < end; j++) {
+                int d = docs[refs[j]];
+                double w = (double) freqs[refs[j]] / totals[d] * idf;
+                tfIdfNorms[d] += w * w;
+            }
+            i = end;
+        }
+        for (int d = 0; d < n; d++) {
+            tfIdfNorms[d] = Math.sqrt(tfIdfNorms[d]);
+        }
+
+        String[] names = new String[n];
+        for (int d = 0; d < n; d++) {
+            names[d] = files[d].getName();
+        }
+        int[] ids = dictionary.addAll(names);
+        int docsOffset = HEADER_SIZE;
+        int idsOffset = docsOffset + n * DOC_ENTRY_SIZE;
+        int termsOffset = idsOffset + n * 4;
+        int postingsOffset = termsOffset + distinct * TERM_ENTRY_SIZE;
+
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        ByteBuffer termTable = ByteBuffer.allocate(distinct * TERM_ENTRY_SIZE);
+        for (int i = 0; i < size; ) {
+            int end = i + 1;
+            while (end < size && terms[end] == terms[i]) {
+                end++;
+            }
+            int start = postings.size();
+            double idf = idf(n, end - i);
+            double maxFrequencyWeight = 0;
+            double maxTfIdfWeight = 0;
+            int previous = 0;
+            for (int j = i; j < end; j++) {
+                int d = docs[refs[j]];
+                int freq = freqs[refs[j]];
+                writeVarint(postings, d - previous);
+                writeVarint(postings, freq);
+                previous = d;
+                maxFrequencyWeight = Math.max(maxFrequencyWeight, weight(Weighting.FREQUENCY, freq, norms[d], totals[d], tfIdfNorms[d], idf));
+                maxTfIdfWeight = Math.max(maxTfIdfWeight, weight(Weighting.TF_IDF, freq, norms[d], totals[d], tfIdfNorms[d], idf));
+            }
+            termTable.putLong(terms[i]);
+            termTable.putLong(postingsOffset + start);
+            termTable.putInt(postings.size() - start);
+            termTable.putInt(end - i);
+            // Round up so the bounds never fall below a real weight
+            termTable.putFloat(Math.nextUp((float) maxFrequencyWeight));
+            termTable.putFloat(Math.nextUp((float) maxTfIdfWeight));
+            i = end;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(termsOffset);
+        head.putInt(MAGIC);
+        head.putInt(VERSION);
+        head.putInt(n);
+        head.putInt(distinct);
+        head.putLong(termsOffset);
+        head.putLong(idsOffset);
+        head.putLong(postingsOffset);
+        for (int d = 0; d < n; d++) {
+            head.putDouble(norms[d]);
+            head.putLong(totals[d]);
+            head.putDouble(tfIdfNorms[d]);
+        }
+        for (int d = 0; d < n; d++) {
+            head.putInt(ids[d]);
+        }
+
+        // Write beside the old index and swap it in, so an open index is never half written
+        File target = new File(fileName);
+        if (target.getParentFile() != null) {
+            target.getParentFile().mkdirs();
+        }
+        File temp = new File(fileName + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] parts = {head.flip(), termTable.flip(), ByteBuffer.wrap(postings.toByteArray())};
+            long remaining = (long) termsOffset + termTable.limit() + postings.size();
+            while (remaining > 0) {
+                remaining -= channel.write(parts);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static double idf(int docCount, int documentFrequency) {
+        return documentFrequency > 0 ? Math.log((double) docCount / documentFrequency) : 0;
+    }
+
+    private static double weight(Weighting weighting, int freq, double norm, long total, double tfIdfNorm, double idf) {
+        if (weighting == Weighting.FREQUENCY) {
+            return norm == 0 ? 0 : freq / norm;
+        }
+        return tfIdfNorm == 0 ? 0 : (double) freq / total * idf / tfIdfNorm;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * @return the number of documents in the index
+     */
+    public int documentCount() {
+        return docCount;
+    }
+
+    /**
+     * @param id id of a document
+     * @return the file name of the document's tree
+     */
+    public String documentName(int id) {
+        return dictionary.name(dictionaryIds[id]);
+    }
+
+    /**
+     * @param name file name of a document's tree
+     * @return its id, or -1 if it is not in the index
+     */
+    public int documentId(String name) {
+        return fromDictionaryId(dictionary.id(name));
+    }
+
+    /**
+     * @param id id of a document
+     * @return the document's DocumentDictionary id
+     */
+    public int dictionaryId(int id) {
+        return dictionaryIds[id];
+    }
+
+    /**
+     * @param dictionaryId DocumentDictionary id of a document
+     * @return its id in the index, or -1 if it is not in the index
+     */
+    public int fromDictionaryId(int dictionaryId) {
+        return dictionaryId >= 0 && dictionaryId < fromDictionaryIds.length ? fromDictionaryIds[dictionaryId] : -1;
+    }
+
+    /**
+     * @param term hash of a word
+     * @return the number of documents containing it
+     */
+    public int documentFrequency(long term) {
+        int entry = findTerm(term);
+        return entry < 0 ? 0 : mapped.getInt(entry + 20);
+    }
+
+    /**
+     * Binary search over the term table, read in place
+     * @return the offset of the term's entry, or -1 if no document has it
+     */
+    private int findTerm(long term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTerm = mapped.getLong(termsOffset + mid * TERM_ENTRY_SIZE);
+            if (midTerm < term) {
+                low = mid + 1;
+            } else if (midTerm > term) {
+                high = mid - 1;
+            } else {
+                return termsOffset + mid * TERM_ENTRY_SIZE;
+            }
+        }
+        return -1;
+    }
+
+    private double documentWeight(Weighting weighting, int doc, int freq, double idf) {
+        int entry = HEADER_SIZE + doc * DOC_ENTRY_SIZE;
+        return weight(weighting, freq, mapped.getDouble(entry), mapped.getLong(entry + 8), mapped.getDouble(entry + 16), idf);
+    }
+
+    /**
+     * Finds the k indexed documents most similar to a document tree
+     * @param query the document to compare against
+     * @param k the number of documents to return
+     * @param weighting how frequencies are weighted on both sides
+     * @param exclude file name of a document to leave out of the results, or null
+     * @return up to k documents, most similar first, only documents sharing a word with the query are scored
+     */
+    public ScoredDocument[] topK(BTree query, int k, Weighting weighting, String exclude) {
+        int excludeId = exclude == null ? -1 : documentId(exclude);
+        double queryWords = query.totalWordCount();
+        long[] terms = new long[query.totalNumKeys()];
+        double[] weights = new double[terms.length];
+        int n = 0;
+        BTreeCursor cursor = query.cursor();
+        while (cursor.next()) {
+            if (cursor.frequency() == 0) {
+                continue;
+            }
+            terms[n] = cursor.key();
+            if (weighting == Weighting.FREQUENCY) {
+                weights[n] = cursor.frequency();
+            } else {
+                weights[n] = cursor.frequency() / queryWords * idf(docCount, documentFrequency(terms[n]));
+            }
+            n++;
+        }
+        return topK(Arrays.copyOf(terms, n), Arrays.copyOf(weights, n), k, weighting, excludeId);
+    }
+
+    /**
+     * MaxScore top k search.
+     * Query terms are ordered by the most they can add to a score. Once the k-th best score is higher than the
+     * combined bound of the weakest terms, documents containing only those terms can not make the top k, so
+     * candidates are only drawn from the other, essential, terms and the weak ones are merely probed.
+     *
+     * @param terms words of the query
+     * @param weights weight of each query word
+     * @param k the number of documents to return
+     * @param weighting how document frequencies are weighted
+     * @param excludeId id of a document to leave out, or -1
+     * @return up to k documents, most similar first
+     */
+    public ScoredDocument[] topK(long[] terms, double[] weights, int k, Weighting weighting, int excludeId) {
+        double queryNorm = 0;
+        for (double w : weights) {
+            queryNorm += w * w;
+        }
+        queryNorm = Math.sqrt(queryNorm);
+        // Open a postings cursor for each query term any document has
+        PostingsCursor[] cursors = new PostingsCursor[terms.length];
+        int m = 0;
+        for (int i = 0; i < terms.length; i++) {
+            int entry = findTerm(terms[i]);
+            if (entry < 0 || weights[i] == 0) {
+                continue;
+            }
+            double bound = weights[i] * mapped.getFloat(entry + (weighting == Weighting.FREQUENCY ? 24 : 28));
+            PostingsCursor c = new PostingsCursor((int) mapped.getLong(entry + 8), mapped.getInt(entry + 20),
+                    weights[i], idf(docCount, mapped.getInt(entry + 20)), bound);
+            c.next();
+            cursors[m++] = c;
+        }
+        cursors = Arrays.copyOf(cursors, m);
+        Arrays.sort(cursors, (a, b) -> Double.compare(a.bound, b.bound));
+        // prefixBounds[i] is the most the i weakest terms can add together
+        double[] prefixBounds = new double[m + 1];
+        for (int i = 0; i < m; i++) {
+            prefixBounds[i + 1] = prefixBounds[i] + cursors[i].bound;
+        }
+
+        // Min heap of the best k documents so far
+        int[] heapDocs = new int[Math.max(k, 0)];
+        double[] heapScores = new double[heapDocs.length];
+        int heapSize = 0;
+        double threshold = 0;
+        int firstEssential = 0;
+        while (k > 0) {
+            int doc = Integer.MAX_VALUE;
+            for (int i = firstEssential; i < m; i++) {
+                doc = Math.min(doc, cursors[i].doc);
+            }
+            if (doc == Integer.MAX_VALUE) {
+                break;
+            }
+            double score = 0;
+            for (int i = firstEssential; i < m; i++) {
+                if (cursors[i].doc == doc) {
+                    score += cursors[i].weight * documentWeight(weighting, doc, cursors[i].freq, cursors[i].idf);
+                    cursors[i].next();
+                }
+            }
+            for (int i = firstEssential - 1; i >= 0; i--) {
+                if (score + prefixBounds[i + 1] <= threshold) {
+                    break;
+                }
+                cursors[i].advance(doc);
+                if (cursors[i].doc == doc) {
+                    score += cursors[i].weight * documentWeight(weighting, doc, cursors[i].freq, cursors[i].idf);
+                }
+            }
+            if (doc == excludeId || score <= 0 || (heapSize == heapDocs.length && score <= threshold)) {
+                continue;
+            }
+            if (heapSize < heapDocs.length) {
+                heapDocs[heapSize] = doc;
+                heapScores[heapSize] = score;
+                siftUp(heapDocs, heapScores, heapSize++);
+            } else {
+                heapDocs[0] = doc;
+                heapScores[0] = score;
+                siftDown(heapDocs, heapScores, heapSize);
+            }
+            if (heapSize == heapDocs.length) {
+                threshold = heapScores[0];
+                while (firstEssential < m && prefixBounds[firstEssential + 1] <= threshold) {
+                    firstEssential++;
+                }
+            }
+        }
+
+        ScoredDocument[] results = new ScoredDocument[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            double score = queryNorm == 0 ? 0 : heapScores[0] / queryNorm;
+            results[i] = new ScoredDocument(heapDocs[0], documentName(heapDocs[0]), score);
+            heapDocs[0] = heapDocs[i];
+            heapScores[0] = heapScores[i];
+            siftDown(heapDocs, heapScores, i);
+        }
+        return results;
+    }
+
+    private static void siftUp(int[] docs, double[] scores, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (scores[parent] <= scores[i]) {
+                return;
+            }
+            swap(docs, scores, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] docs, double[] scores, int size) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && scores[left] < scores[smallest]) {
+                smallest = left;
+            }
+            if (right < size && scores[right] < scores[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(docs, scores, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] docs, double[] scores, int a, int b) {
+        int doc = docs[a];
+        docs[a] = docs[b];
+        docs[b] = doc;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+
+    /**
+     * Decodes one term's postings straight from the mapping
+     */
+    private class PostingsCursor {
+        final double weight;
+        final double idf;
+        final double bound;
+        int doc = -1;
+        int freq;
+        private int position;
+        private int remaining;
+
+        PostingsCursor(int position, int count, double weight, double idf, double bound) {
+            this.position = position;
+            this.remaining = count;
+            this.weight = weight;
+            this.idf = idf;
+            this.bound = bound;
+        }
+
+        /**
+         * Moves to the next document, doc becomes Integer.MAX_VALUE past the last one
+         */
+        void next() {
+            if (remaining == 0) {
+                doc = Integer.MAX_VALUE;
+                return;
+            }
+            remaining--;
+            doc = (doc < 0 ? 0 : doc) + readVarint();
+            freq = readVarint();
+        }
+
+        /**
+         * Moves to the first document at or after target
+         */
+        void advance(int target) {
+            while (doc < target) {
+                next();
+            }
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mapped.get(position++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    @Override
+    public void close() {
+        // The mapping is released once the index is no longer referenced
+    }
+}
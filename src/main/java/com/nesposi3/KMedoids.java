@@ -0,0 +1,345 @@
+package com.nesposi3;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * K-medoids clustering over a DocumentSimilarity, with distance taken as 1 - similarity.
+ *
+ * Medoids are seeded with k-medoids++, then improved with FastPAM1 swaps: every iteration finds the single
+ * best (medoid, non-medoid) swap over the whole corpus in O(n^2) distance lookups instead of PAM's O(k n^2),
+ * and stops once no swap lowers the total distance. Corpora larger than the CLARA threshold are clustered on
+ * random samples, keeping the medoids of the sample that fit the whole corpus best.
+ *
+ * Work is spread over a ForkJoinPool, every reduction is done in index order so the result only depends on the
+ * seed, not on the number of threads.
+ */
+public class KMedoids {
+    // Swap iterations allowed before settling for the current medoids
+    public static final int MAX_ITERATIONS = 100;
+    // Above this many documents CLARA samples are clustered instead of the whole corpus
+    public static final int CLARA_THRESHOLD = 5000;
+    public static final int CLARA_SAMPLES = 5;
+    // A swap must improve the total distance by more than this to be taken, so rounding can not cycle
+    private static final double TOLERANCE = 1e-9;
+    // Ranges smaller than this are not split further between threads
+    private static final int GRAIN = 64;
+
+    private final DocumentSimilarity similarity;
+    private final int k;
+    private final long seed;
+    private final ForkJoinPool pool;
+
+    /**
+     * The medoids found and which medoid each document belongs to
+     */
+    public static class Result {
+        // Document ids of the medoids
+        public final int[] medoids;
+        // For every document, the index into medoids of its nearest medoid
+        public final int[] assignment;
+        // Sum over all documents of the distance to their medoid
+        public final double cost;
+
+        Result(int[] medoids, int[] assignment, double cost) {
+            this.medoids = medoids;
+            this.assignment = assignment;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * @param similarity similarities between the documents to cluster
+     * @param k the number of clusters
+     * @param seed seed of every random choice, equal seeds give equal clusterings
+     * @param pool pool to run on
+     */
+    public KMedoids(DocumentSimilarity similarity, int k, long seed, ForkJoinPool pool) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be at least 1, was " + k);
+        }
+        this.similarity = similarity;
+        this.k = k;
+        this.seed = seed;
+        this.pool = pool;
+    }
+
+    /**
+     * Uses the common ForkJoinPool
+     */
+    public KMedoids(DocumentSimilarity similarity, int k, long seed) {
+        this(similarity, k, seed, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Clusters every document
+     * @return the medoids and assignment, with fewer than k medoids if there are fewer than k documents
+     */
+    public Result run() {
+        int n = similarity.documentCount();
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        if (n <= CLARA_THRESHOLD) {
+            return cluster(all, new Random(seed));
+        }
+        // CLARA: cluster samples, judge each by how well its medoids fit the whole corpus
+        int sampleSize = Math.min(n, Math.max(40 + 2 * k, CLARA_THRESHOLD / 2));
+        Result best = null;
+        for (int s = 0; s < CLARA_SAMPLES; s++) {
+            Random random = new Random(seed + s);
+            int[] sample = sample(n, sampleSize, random);
+            Result local = cluster(sample, random);
+            int[] medoids = new int[local.medoids.length];
+            for (int i = 0; i < medoids.length; i++) {
+                medoids[i] = sample[local.medoids[i]];
+            }
+            Result full = assign(all, medoids);
+            if (best == null || full.cost < best.cost) {
+                best = full;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Assigns documents to the nearest of the given medoids
+     * @param docs document ids to assign
+     * @param medoids document ids of the medoids
+     * @return the assignment, with medoids and assignment in terms of document ids
+     */
+    public Result assign(int[] docs, int[] medoids) {
+        int[] nearest = new int[docs.length];
+        double[] distances = new double[docs.length];
+        parallelFor(docs.length, o -> {
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < medoids.length; i++) {
+                double d = distance(docs[o], medoids[i]);
+                if (d < best) {
+                    best = d;
+                    nearest[o] = i;
+                }
+            }
+            distances[o] = best;
+        });
+        return new Result(medoids.clone(), nearest, sum(distances));
+    }
+
+    /**
+     * k-medoids++ seeding then FastPAM1 swaps over a set of documents
+     * @param docs ids of the documents to cluster
+     * @return medoids as indexes into docs, assignment as indexes into the medoids
+     */
+    private Result cluster(int[] docs, Random random) {
+        int n = docs.length;
+        int kk = Math.min(k, n);
+        if (kk == 0) {
+            return new Result(new int[0], new int[0], 0);
+        }
+        int[] medoids = seed(docs, kk, random);
+        boolean[] isMedoid = new boolean[n];
+        for (int m : medoids) {
+            isMedoid[m] = true;
+        }
+        int[] nearest = new int[n];
+        double[] dNearest = new double[n];
+        double[] dSecond = new double[n];
+        assign(docs, medoids, nearest, dNearest, dSecond);
+
+        double[] bestDelta = new double[n];
+        int[] bestMedoid = new int[n];
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            // How much the total distance grows if each medoid is removed and its documents fall back to their second
+            double[] removalLoss = new double[kk];
+            for (int o = 0; o < n; o++) {
+                removalLoss[nearest[o]] += dSecond[o] - dNearest[o];
+            }
+            // Best swap for each non-medoid candidate, evaluated against all medoids at once
+            parallelFor(n, c -> {
+                bestDelta[c] = Double.MAX_VALUE;
+                if (isMedoid[c]) {
+                    return;
+                }
+                double[] delta = removalLoss.clone();
+                double shared = 0;
+                for (int o = 0; o < n; o++) {
+                    double d = distance(docs[o], docs[c]);
+                    if (d < dNearest[o]) {
+                        // o moves to the candidate whichever medoid is removed
+                        shared += d - dNearest[o];
+                        delta[nearest[o]] += dNearest[o] - dSecond[o];
+                    } else if (d < dSecond[o]) {
+                        // o only moves to the candidate if its own medoid is removed
+                        delta[nearest[o]] += d - dSecond[o];
+                    }
+                }
+                for (int i = 0; i < kk; i++) {
+                    double total = shared + delta[i];
+                    if (total < bestDelta[c]) {
+                        bestDelta[c] = total;
+                        bestMedoid[c] = i;
+                    }
+                }
+            });
+            int candidate = -1;
+            double best = -TOLERANCE;
+            for (int c = 0; c < n; c++) {
+                if (bestDelta[c] < best) {
+                    best = bestDelta[c];
+                    candidate = c;
+                }
+            }
+            if (candidate < 0) {
+                break;
+            }
+            isMedoid[medoids[bestMedoid[candidate]]] = false;
+            isMedoid[candidate] = true;
+            medoids[bestMedoid[candidate]] = candidate;
+            assign(docs, medoids, nearest, dNearest, dSecond);
+        }
+        return new Result(medoids, nearest, sum(dNearest));
+    }
+
+    /**
+     * k-medoids++: each next medoid is drawn with probability proportional to its squared distance
+     * from the closest medoid chosen so far
+     * @return medoids as indexes into docs
+     */
+    private int[] seed(int[] docs, int kk, Random random) {
+        int n = docs.length;
+        int[] medoids = new int[kk];
+        double[] closest = new double[n];
+        Arrays.fill(closest, Double.MAX_VALUE);
+        medoids[0] = random.nextInt(n);
+        for (int m = 1; m < kk; m++) {
+            int last = docs[medoids[m - 1]];
+            double[] weights = new double[n];
+            parallelFor(n, o -> {
+                closest[o] = Math.min(closest[o], distance(docs[o], last));
+                weights[o] = closest[o] * closest[o];
+            });
+            for (int i = 0; i < m; i++) {
+                weights[medoids[i]] = 0;
+            }
+            double total = sum(weights);
+            int chosen = -1;
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int o = 0; o < n; o++) {
+                    target -= weights[o];
+                    if (weights[o] > 0 && target <= 0) {
+                        chosen = o;
+                        break;
+                    }
+                }
+            }
+            if (chosen < 0) {
+                // Every document left coincides with a medoid, take the first that is not one
+                for (int o = 0; o < n && chosen < 0; o++) {
+                    chosen = contains(medoids, m, o) ? -1 : o;
+                }
+            }
+            medoids[m] = chosen;
+        }
+        return medoids;
+    }
+
+    /**
+     * Finds the nearest and second nearest medoid of every document
+     */
+    private void assign(int[] docs, int[] medoids, int[] nearest, double[] dNearest, double[] dSecond) {
+        parallelFor(docs.length, o -> {
+            double first = Double.MAX_VALUE;
+            double second = Double.MAX_VALUE;
+            int index = 0;
+            for (int i = 0; i < medoids.length; i++) {
+                double d = distance(docs[o], docs[medoids[i]]);
+                if (d < first) {
+                    second = first;
+                    first = d;
+                    index = i;
+                } else if (d < second) {
+                    second = d;
+                }
+            }
+            nearest[o] = index;
+            dNearest[o] = first;
+            // With a single medoid, removing it is never considered, any finite value works
+            dSecond[o] = second == Double.MAX_VALUE ? first : second;
+        });
+    }
+
+    private double distance(int a, int b) {
+        return 1 - similarity.similarity(a, b);
+    }
+
+    private static int[] sample(int n, int size, Random random) {
+        // Partial Fisher-Yates shuffle, sorted so documents are visited in id order
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(n - i);
+            int t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+        }
+        int[] sample = Arrays.copyOf(ids, size);
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sums in index order, so the result does not depend on how work was split
+     */
+    private static double sum(double[] values) {
+        double total = 0;
+        for (double v : values) {
+            total += v;
+        }
+        return total;
+    }
+
+    private void parallelFor(int n, IntConsumer body) {
+        pool.invoke(new Range(0, n, body));
+    }
+
+    private static class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final IntConsumer body;
+
+        Range(int from, int to, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                for (int i = from; i < to; i++) {
+                    body.accept(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Range(from, mid, body), new Range(mid, to, body));
+        }
+    }
+}
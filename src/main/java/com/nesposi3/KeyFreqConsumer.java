@@ -0,0 +1,9 @@
+package com.nesposi3;
+
+/**
+ * Receives (key, frequency) pairs from a BTree scan without boxing either value
+ */
+@FunctionalInterface
+public interface KeyFreqConsumer {
+    void accept(long key, int freq);
+}
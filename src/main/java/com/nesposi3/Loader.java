@@ -14,8 +14,16 @@ public class Loader {
 
     public static void  main(String[] args){
         try {
-            //CacheUtils.initialize();
-            ClusteringUtils.kMedioids();
+            if (args.length > 0 && args[0].equals("ingest")) {
+                // Fills the cache from links.txt, "ingest offline" only reads pages already in storage/html/
+                IngestPipeline.Config config = new IngestPipeline.Config();
+                config.offline = config.offline || (args.length > 1 && args[1].equals("offline"));
+                CacheUtils.initialize(config);
+            } else if (args.length > 0 && args[0].equals("incremental")) {
+                System.out.println("Assigned " + ClusteringUtils.assignNewDocuments() + " new documents");
+            } else {
+                ClusteringUtils.kMedioids();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,24 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.ClusteringUtils;
+
+/**
+ * The original hashing of words, kept so corpora cached before TermHasher existed stay readable.
+ * Copies the word into a String and digests it, use XxHash64TermHasher for new corpora
+ */
+public class Md5TermHasher implements TermHasher {
+    public static final Md5TermHasher INSTANCE = new Md5TermHasher();
+
+    private Md5TermHasher() {
+    }
+
+    @Override
+    public long hash(CharSequence text, int start, int end) {
+        return ClusteringUtils.stringHash64(text.subSequence(start, end).toString());
+    }
+
+    @Override
+    public int id() {
+        return MD5;
+    }
+}
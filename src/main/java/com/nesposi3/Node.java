@@ -1,152 +1,133 @@
 package com.nesposi3;
 
-import com.nesposi3.Utils.BTreeUtils;
-
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
-import static com.nesposi3.Utils.BTreeUtils.*;
-
 /**
  * Node objects are the Nodes of the Persistent B-Tree.
  * In this case, Nodes represent websites and store word information
  *
- * Nodes have a maximum size of 4096 bytes, so addresses must be at least 4096 apart
+ * Each node fills one page of the tree file, the page size and T come from the file's BTreeHeader.
+ * Only the first numKeys keys and frequencies, and for internal nodes the first numKeys+1 children, are used,
+ * so every 64 bit value is a valid key.
+ * The address of a node is the address of its page and is not stored in it.
  *
  * Block Format in bytes:
- *          8       8           8*2T          8 * (2T-1)    4*(2T-1)
- *    | address | parent |   children    |     keys      |  frequencies
+ *          4           4           8 * (2T-1)      4 * (2T-1)        8 * 2T
+ *    | key count | leaf flag |       keys      |   frequencies   |   children
  */
 public class Node {
+    public static final int LEAF_FLAG = 1;
     public long address;
-    public long parent;
+    public int numKeys;
+    public boolean leaf;
     public long[] children;
     public long[] keys;
     public int[] frequencies;
     /**
-     * This constructor is used for debugging reasons
-     * @param address
-     * @param parent
-     * @param children
-     * @param keys
-     */
-    public Node(long address, long parent, long[] children, long[] keys ) {
-        this.address = address;
-        this.parent = parent;
-        this.children = children;
-        this.keys=keys;
-    }
-
-    /**
-     * This constructor is used to initialize root Node
-     *
+     * This constructor is used to initialize an empty leaf
+     * @param t minimum degree of the tree the node belongs to
      */
-    public Node(){
-        this.children = Arrays.copyOf(getNullLongArray(NUM_CHILDREN),NUM_CHILDREN);
-        this.keys = Arrays.copyOf(getNullLongArray(K),K);
-        this.frequencies = Arrays.copyOf(getNullIntArray(K),K);
+    public Node(int t){
+        this.children = new long[2 * t];
+        this.keys = new long[2 * t - 1];
+        this.frequencies = new int[2 * t - 1];
         this.address = 0;
-        this.parent = NULL;
-    }
-
-    /**
-     * Create a Node object from a Byte object array
-     * @param objectArr Byte object array representing a Node
-     */
-    public Node(Byte[] objectArr){
-        byte[] arr = BTreeUtils.toPrimitiveBytes(objectArr);
-        this.children = new long[NUM_CHILDREN];
-        this.keys = new long[K];
-        this.frequencies = new int[K];
-        ByteBuffer buffer = ByteBuffer.wrap(arr);
-        this.address = buffer.getLong();
-        this.parent = buffer.getLong();
-        for (int i = 0; i <NUM_CHILDREN; i++) {
-            this.children[i] = buffer.getLong();
-        }
-        for (int i = 0; i < K; i++) {
-            this.keys[i] = buffer.getLong();
-        }
-        for (int i = 0; i <K ; i++) {
-            this.frequencies[i] = buffer.getInt();
-        }
+        this.leaf = true;
     }
 
     /**
      * Create a Node object from a byte array
+     * @param t minimum degree of the tree the node belongs to
+     * @param address address of the page the bytes were read from
      * @param arr byte primitive array representing a node
      */
-    public Node(byte[] arr){
-        this.children = new long[NUM_CHILDREN];
-        this.keys = new long[K];
-        this.frequencies = new int[K];
+    public Node(int t, long address, byte[] arr){
+        this(t);
+        this.address = address;
         ByteBuffer buffer = ByteBuffer.wrap(arr);
-        this.address = buffer.getLong();
-        this.parent = buffer.getLong();
-        for (int i = 0; i <NUM_CHILDREN; i++) {
-            this.children[i] = buffer.getLong();
-        }
-        for (int i = 0; i < K; i++) {
+        this.numKeys = buffer.getInt();
+        this.leaf = (buffer.getInt() & LEAF_FLAG) != 0;
+        for (int i = 0; i < numKeys; i++) {
             this.keys[i] = buffer.getLong();
         }
-        for (int i = 0; i <K ; i++) {
+        buffer.position(buffer.position() + (keys.length - numKeys) * 8);
+        for (int i = 0; i < numKeys; i++) {
             this.frequencies[i] = buffer.getInt();
         }
-
+        buffer.position(buffer.position() + (keys.length - numKeys) * 4);
+        if (!leaf) {
+            for (int i = 0; i <= numKeys; i++) {
+                this.children[i] = buffer.getLong();
+            }
+        }
     }
 
     /**
      * Serializes this Node object into a byte representation
-     * @return a byte[] representing the node
+     * @param pageSize size of a page in the tree file
+     * @return a byte[] of pageSize bytes representing the node
      */
-    public byte[] toBytes(){
-        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
-        buffer.putLong(this.address);
-        buffer.putLong(this.parent);
-        for (int i = 0; i <NUM_CHILDREN ; i++) {
-            buffer.putLong(this.children[i]);
+    public byte[] toBytes(int pageSize){
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        buffer.putInt(numKeys);
+        buffer.putInt(leaf ? LEAF_FLAG : 0);
+        for (int i = 0; i < keys.length; i++) {
+            buffer.putLong(i < numKeys ? keys[i] : 0);
         }
-        for (int i = 0; i < K ; i++) {
-            buffer.putLong(keys[i]);
+        for (int i = 0; i < keys.length; i++) {
+            buffer.putInt(i < numKeys ? frequencies[i] : 0);
         }
-        for (int i = 0; i <K ; i++) {
-            buffer.putInt(frequencies[i]);
+        for (int i = 0; i < children.length; i++) {
+            buffer.putLong(!leaf && i <= numKeys ? children[i] : 0);
         }
         return buffer.array();
     }
 
+    /**
+     * @param t minimum degree of a node
+     * @return the number of bytes a serialized node with that degree takes
+     */
+    public static int size(int t) {
+        int k = 2 * t - 1;
+        return 8 + k * 8 + k * 4 + 2 * t * 8;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(!(obj instanceof Node)){
             return false;
         }else{
             Node other = (Node) obj;
-            boolean address = other.address == this.address;
-            boolean parent = other.parent == this.parent;
-            boolean children = true;
-            for (int i = 0; i < NUM_CHILDREN ; i++) {
-                if(this.children[i]!=other.children[i]){
-                    children = false;
-                }
+            if(other.numKeys != this.numKeys || other.leaf != this.leaf || other.address != this.address){
+                return false;
             }
-            boolean keys = true;
-            for (int i = 0; i < K ; i++) {
+            for (int i = 0; i < numKeys ; i++) {
                 if(this.keys[i]!=other.keys[i] || frequencies[i] != other.frequencies[i]){
-                    keys = false;
+                    return false;
+                }
+            }
+            if(!leaf){
+                for (int i = 0; i <= numKeys ; i++) {
+                    if(this.children[i]!=other.children[i]){
+                        return false;
+                    }
                 }
             }
-            return (address && parent && children && keys);
+            return true;
         }
     }
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder();
-        s.append("\nAddress: " + this.address+ "\nParent " + this.parent);
-        for (int i = 0; i < NUM_CHILDREN; i++) {
-            s.append("\nChild " + i +": " + this.children[i] );
+        s.append("\nAddress: " + this.address + "\nLeaf: " + this.leaf);
+        if (!leaf) {
+            for (int i = 0; i <= numKeys; i++) {
+                s.append("\nChild " + i +": " + this.children[i] );
+            }
         }
-        for (int i = 0; i < K; i++) {
+        for (int i = 0; i < numKeys; i++) {
             s.append("\nKey " + i +": " + this.keys[i] + ". Freq:" + this.frequencies[i]);
         }
         return s.toString();
@@ -154,84 +135,28 @@ public class Node {
 
     @Override
     public int hashCode() {
-        return Objects.hash(parent,address,children,frequencies);
+        return Objects.hash(address, numKeys, leaf, Arrays.hashCode(Arrays.copyOf(keys, numKeys)));
     }
     public boolean leafStatus(){
-        boolean isLeaf = true;
-        for (int i = 0; i <NUM_CHILDREN ; i++) {
-            if(children[i]!=-1){
-                isLeaf = false;
-            }
-        }
-        return isLeaf;
+        return leaf;
     }
     public int numKeys(){
-        int i = 0;
-        for (int j = 0; j < K ; j++) {
-            if(keys[j] !=-1){
-                i++;
-            }
-        }
-        return i;
+        return numKeys;
     }
     public boolean isFull(){
-        return numKeys() == K;
+        return numKeys == keys.length;
     }
 
     public void setNumKeys(int n){
-        int x =0;
-        for (int i = 0; i <K ; i++) {
-            if(x==n){
-                for (int j = i; j <K ; j++) {
-                    keys[j] = NULL;
-                    frequencies[j]= -1;
-                }
-                break;
-            }
-            if(keys[i]!=NULL){
-                x++;
-            }
-        }
-    }
-    private long[] getNullLongArray(int size){
-        long[] out = new long[size];
-        for (int i = 0; i <size ; i++) {
-            out[i] = NULL;
-        }
-        return out;
-    }
-    private int[] getNullIntArray(int size){
-        int[] out = new int[size];
-        for (int i = 0; i <size ; i++) {
-            out[i] = -1;
-        }
-        return out;
+        this.numKeys = n;
     }
-    public void addChild(long addr){
-        for (int i = 0; i <NUM_CHILDREN ; i++) {
-            // If the key has found something bigger than it, shift up and add
-            if(children[i]==NULL){
-                children[i] = addr;
-                return;
-            }
-        }
-    }
-    public void addKey(long key){
-        long[] oldKeys = Arrays.copyOf(this.keys,K);
-        for (int i = 0; i <K ; i++) {
-            if(keys[i]==NULL){
-                // No more to compare with, set key and break;
-                keys[i] = key;
-                return;
-            }
-            // If the key has found something bigger than it, shift up and add
-            if(key <= keys[i]){
-                for (int j = i; j <K-1 ; j++) {
-                    this.keys[j+1] = oldKeys[j];
-                }
-                this.keys[i] = key;
-                return;
-            }
-        }
+
+    /**
+     * Binary search for a key among this node's keys
+     * @param key the key to look for
+     * @return the index of the key, or (-(insertion point) - 1) if it is not present
+     */
+    public int indexOf(long key){
+        return Arrays.binarySearch(keys, 0, numKeys, key);
     }
 }
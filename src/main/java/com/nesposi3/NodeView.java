@@ -0,0 +1,103 @@
+package com.nesposi3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight over a serialized Node.
+ * Fields are decoded straight out of the backing buffer on every call, so one NodeView
+ * can be moved across any number of pages without allocating.
+ * Uses the same block format as Node.
+ */
+public class NodeView {
+    private static final int KEYS_OFFSET = 8;
+    private final int t;
+    private final int frequenciesOffset;
+    private final int childrenOffset;
+    private ByteBuffer buffer;
+    private int base;
+
+    /**
+     * @param t minimum degree of the tree being viewed
+     */
+    public NodeView(int t) {
+        this.t = t;
+        this.frequenciesOffset = KEYS_OFFSET + (2 * t - 1) * 8;
+        this.childrenOffset = frequenciesOffset + (2 * t - 1) * 4;
+    }
+
+    /**
+     * Points this view at the node starting at base in buffer
+     * @param buffer buffer holding one or more serialized nodes
+     * @param base offset of the node within the buffer
+     * @return this view
+     */
+    public NodeView wrap(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+        return this;
+    }
+
+    public int numKeys() {
+        return buffer.getInt(base);
+    }
+
+    public boolean leafStatus() {
+        return (buffer.getInt(base + 4) & Node.LEAF_FLAG) != 0;
+    }
+
+    public long child(int i) {
+        return buffer.getLong(base + childrenOffset + i * 8);
+    }
+
+    public long key(int i) {
+        return buffer.getLong(base + KEYS_OFFSET + i * 8);
+    }
+
+    public int frequency(int i) {
+        return buffer.getInt(base + frequenciesOffset + i * 4);
+    }
+
+    /**
+     * Binary search over the key column, read in place
+     * @param key the key to look for
+     * @return the index of the key, or (-(insertion point) - 1) if it is not present
+     */
+    public int indexOf(long key) {
+        int low = 0;
+        int high = numKeys() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = key(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Copies the viewed node into a standalone Node
+     * @param address address of the viewed page
+     * @return a Node equal to the one being viewed
+     */
+    public Node toNode(long address) {
+        Node n = new Node(t);
+        n.address = address;
+        n.numKeys = numKeys();
+        n.leaf = leafStatus();
+        for (int i = 0; i < n.numKeys; i++) {
+            n.keys[i] = key(i);
+            n.frequencies[i] = frequency(i);
+        }
+        if (!n.leaf) {
+            for (int i = 0; i <= n.numKeys; i++) {
+                n.children[i] = child(i);
+            }
+        }
+        return n;
+    }
+}
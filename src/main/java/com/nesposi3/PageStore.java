@@ -0,0 +1,155 @@
+package com.nesposi3;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed-size page I/O over a single long-lived FileChannel.
+ * One PageStore is opened per BTree file and kept open until close() is called,
+ * so reads and writes are positional and never reopen the file.
+ */
+public class PageStore implements Closeable {
+    private final FileChannel channel;
+    private final int pageSize;
+    private final ByteBuffer buffer;
+    private long endOfFile;
+
+    /**
+     * Opens (creating if needed) the file at the given path for page I/O
+     * @param fileName path of the file to open
+     * @param pageSize size of every page in bytes
+     * @throws IOException if the file can not be opened
+     */
+    public PageStore(String fileName, int pageSize) throws IOException {
+        this(open(fileName), pageSize);
+    }
+
+    /**
+     * Takes ownership of an already open channel, used when the page size has to be read from the file first
+     * @param channel channel opened for reading and writing
+     * @param pageSize size of every page in bytes
+     * @throws IOException if the size of the file can not be read
+     */
+    public PageStore(FileChannel channel, int pageSize) throws IOException {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.buffer = ByteBuffer.allocate(pageSize);
+        this.endOfFile = channel.size();
+    }
+
+    /**
+     * Opens (creating if needed) a file for reading and writing
+     * @param fileName path of the file
+     * @return the open channel
+     * @throws IOException if the file can not be opened
+     */
+    public static FileChannel open(String fileName) throws IOException {
+        return FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads the page starting at address into dst
+     * @param address byte offset of the page
+     * @param dst array of at least pageSize bytes to fill
+     * @throws IOException if the page lies beyond the end of the file
+     */
+    public void readPage(long address, byte[] dst) throws IOException {
+        readPage(address, dst, 0);
+    }
+
+    /**
+     * Reads the page starting at address into dst at the given offset
+     * @param address byte offset of the page
+     * @param dst array with at least pageSize bytes after offset
+     * @param offset where in dst the page is copied to
+     * @throws IOException if the page lies beyond the end of the file
+     */
+    public void readPage(long address, byte[] dst, int offset) throws IOException {
+        buffer.clear();
+        long position = address;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Page " + address + " is past the end of the file");
+            }
+            position += read;
+        }
+        buffer.flip();
+        buffer.get(dst, offset, pageSize);
+    }
+
+    /**
+     * Writes pageSize bytes of src to the page starting at address
+     * @param address byte offset of the page
+     * @param src page contents
+     * @throws IOException on a failed write
+     */
+    public void writePage(long address, byte[] src) throws IOException {
+        writePage(address, src, 0);
+    }
+
+    /**
+     * Writes pageSize bytes of src, starting at offset, to the page starting at address
+     * @param address byte offset of the page
+     * @param src array holding the page contents
+     * @param offset where in src the page starts
+     * @throws IOException on a failed write
+     */
+    public void writePage(long address, byte[] src, int offset) throws IOException {
+        buffer.clear();
+        buffer.put(src, offset, pageSize);
+        buffer.flip();
+        long position = address;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        if (address + pageSize > endOfFile) {
+            endOfFile = address + pageSize;
+        }
+    }
+
+    /**
+     * Reserves a new page at the end of the file
+     * @return the address of the reserved page
+     */
+    public long allocate() {
+        long address = endOfFile;
+        endOfFile += pageSize;
+        return address;
+    }
+
+    /**
+     * @return the size of the file in bytes, including pages that are allocated but not yet written
+     */
+    public long size() {
+        return endOfFile;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Discards every page, leaving an empty file
+     * @throws IOException on a failed truncate
+     */
+    public void truncate() throws IOException {
+        channel.truncate(0);
+        endOfFile = 0;
+    }
+
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,21 @@
+package com.nesposi3;
+
+/**
+ * A document and how similar it is to a query, as returned by ranked searches
+ */
+public class ScoredDocument {
+    public final int id;
+    public final String name;
+    public final double score;
+
+    public ScoredDocument(int id, String name, double score) {
+        this.id = id;
+        this.name = name;
+        this.score = score;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + score;
+    }
+}
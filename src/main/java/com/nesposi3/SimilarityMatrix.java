@@ -0,0 +1,269 @@
+package com.nesposi3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static com.nesposi3.Utils.BTreeUtils.BTREE_FOLDER_NAME;
+
+/**
+ * Every pairwise document similarity, computed once in parallel and memory mapped.
+ * Only the lower triangle is kept: row i holds the similarity of document i to documents 0 to i-1,
+ * and a document is always fully similar to itself.
+ * Documents keep the index they were added with, so new documents are added by appending rows.
+ * Appended rows use the IDF of the grown corpus while older rows keep theirs, so once the corpus has grown by
+ * more than REBUILD_GROWTH since the last full computation the whole matrix is computed again.
+ *
+ * File format:
+ *      4       4          4             4
+ *   | magic | version | doc count | built count |  rows as float32, row i has i entries
+ *
+ *   built count: the number of documents when every row was last computed, 0 if unknown
+ *
+ * The DocumentDictionary ids of the documents are kept as ints, in index order, in a file beside the matrix.
+ * The count in the header is written last, so rows or ids past it are from an interrupted update and ignored.
+ */
+public class SimilarityMatrix implements DocumentSimilarity, Closeable {
+    public static final String INDEX_FILE_NAME = DocumentFrequencyIndex.INDEX_FOLDER_NAME + "similarity";
+    public static final String IDS_SUFFIX = ".ids";
+    public static final int MAGIC = 0x53494d58;
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    // Growth of the corpus since the last full computation, 0.1 meaning 10%, past which update recomputes every row
+    private static final double REBUILD_GROWTH = 0.1;
+    // Mappings are limited to 2GB, so large matrices are mapped in segments. Floats never straddle two
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final MappedByteBuffer[] segments;
+    private final DocumentDictionary dictionary;
+    private final int docCount;
+    private final int[] dictionaryIds;
+    private final int[] fromDictionaryIds;
+
+    /**
+     * Maps an existing matrix of the document cache
+     * @param fileName path of the matrix, its ids are read from fileName + IDS_SUFFIX
+     * @throws IOException if the files can not be read or are not a matrix
+     */
+    public SimilarityMatrix(String fileName) throws IOException {
+        this(fileName, DocumentDictionary.shared());
+    }
+
+    /**
+     * Maps an existing matrix
+     * @param fileName path of the matrix, its ids are read from fileName + IDS_SUFFIX
+     * @param dictionary the dictionary the ids are from
+     * @throws IOException if the files can not be read or are not a matrix
+     */
+    public SimilarityMatrix(String fileName, DocumentDictionary dictionary) throws IOException {
+        this.dictionary = dictionary;
+        try (FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            this.docCount = readCount(channel, fileName);
+            long length = rowOffset(docCount);
+            int numSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            this.segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+        }
+        int[] ids = readIds(new File(fileName + IDS_SUFFIX));
+        if (ids.length < docCount) {
+            throw new IOException(fileName + IDS_SUFFIX + " has " + ids.length + " documents, expected " + docCount);
+        }
+        this.dictionaryIds = Arrays.copyOf(ids, docCount);
+        this.fromDictionaryIds = DocumentDictionary.inverse(dictionaryIds);
+    }
+
+    private static int[] readIds(File file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int[] ids = new int[bytes.remaining() / 4];
+        bytes.asIntBuffer().get(ids);
+        return ids;
+    }
+
+    private static int readCount(FileChannel channel, String fileName) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+        while (head.hasRemaining()) {
+            if (channel.read(head, head.position()) < 0) {
+                throw new IOException(fileName + " is too short to be a similarity matrix");
+            }
+        }
+        if (head.getInt(0) != MAGIC) {
+            throw new IOException(fileName + " is not a similarity matrix");
+        }
+        if (head.getInt(4) != VERSION) {
+            throw new IOException("Similarity matrix version " + head.getInt(4) + " is not supported, expected " + VERSION);
+        }
+        return head.getInt(8);
+    }
+
+    /**
+     * @return byte offset of row i, which is also the length of a matrix with i rows
+     */
+    private static long rowOffset(int i) {
+        return HEADER_SIZE + 4L * ((long) i * (i - 1) / 2);
+    }
+
+    /**
+     * Brings the matrix of the document cache up to date with its vectors and maps it
+     * @param store the current vectors of the cache
+     * @return the open matrix
+     * @throws IOException
+     */
+    public static SimilarityMatrix open(DocumentVectorStore store) throws IOException {
+        update(INDEX_FILE_NAME, store, BTREE_FOLDER_NAME);
+        return new SimilarityMatrix(INDEX_FILE_NAME);
+    }
+
+    /**
+     * Adds rows for the documents of the store that the matrix does not have yet.
+     * The whole matrix is recomputed instead if it does not exist, if one of its documents was
+     * removed or rewritten since it was written, or if the store has grown by more than REBUILD_GROWTH
+     * since every row was last computed.
+     * Rows already written keep the similarities they were computed with, so until the next full computation
+     * older rows do not see the shift in IDF that new documents cause.
+     *
+     * @param fileName path of the matrix
+     * @param store the current vectors of the corpus
+     * @param documentFolder folder holding the document trees, to tell which were rewritten
+     * @throws IOException
+     */
+    public static void update(String fileName, DocumentVectorStore store, String documentFolder) throws IOException {
+        DocumentDictionary dictionary = store.getDictionary();
+        File file = new File(fileName);
+        File idsFile = new File(fileName + IDS_SUFFIX);
+        // Dictionary ids of the documents in matrix order
+        int[] order = new int[store.documentCount()];
+        int existing = 0;
+        int builtCount = 0;
+        if (file.exists() && idsFile.exists()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                existing = readCount(channel, fileName);
+                ByteBuffer built = ByteBuffer.allocate(4);
+                channel.read(built, 12);
+                builtCount = built.getInt(0);
+            } catch (IOException ioe) {
+                existing = 0;
+            }
+            int[] ids = readIds(idsFile);
+            if (ids.length < existing || existing > order.length
+                    || order.length > builtCount * (1 + REBUILD_GROWTH)) {
+                existing = 0;
+            }
+            long written = file.lastModified();
+            for (int i = 0; i < existing; i++) {
+                if (store.fromDictionaryId(ids[i]) < 0
+                        || new File(documentFolder, dictionary.name(ids[i])).lastModified() > written) {
+                    existing = 0;
+                    break;
+                }
+                order[i] = ids[i];
+            }
+        }
+        boolean[] known = new boolean[dictionary.size()];
+        for (int i = 0; i < existing; i++) {
+            known[order[i]] = true;
+        }
+        int count = existing;
+        for (int id = 0; id < store.documentCount(); id++) {
+            if (!known[store.dictionaryId(id)]) {
+                order[count++] = store.dictionaryId(id);
+            }
+        }
+        if (existing == count && file.exists()) {
+            return;
+        }
+        final int first = existing;
+        int[] storeIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            storeIds[i] = store.fromDictionaryId(order[i]);
+        }
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (existing == 0) {
+                channel.truncate(0);
+                ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+                head.putInt(MAGIC).putInt(VERSION).putInt(0).putInt(count).flip();
+                channel.write(head, 0);
+            }
+            long from = rowOffset(first);
+            long to = rowOffset(count);
+            // Each new row is computed on its own, rows never share a float so they can be written concurrently
+            for (long start = from; start < to; start += SEGMENT_SIZE) {
+                long end = Math.min(to, start + SEGMENT_SIZE);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, start, end - start);
+                long regionStart = start;
+                IntStream.range(first, count).parallel().forEach(i -> {
+                    long rowStart = rowOffset(i);
+                    int firstColumn = (int) Math.max(0, (regionStart - rowStart) / 4);
+                    int lastColumn = (int) Math.min(i, (end - rowStart) / 4);
+                    for (int j = firstColumn; j < lastColumn; j++) {
+                        int position = (int) (rowStart + 4L * j - regionStart);
+                        region.putFloat(position, (float) store.similarity(storeIds[i], storeIds[j]));
+                    }
+                });
+                region.force();
+            }
+            ByteBuffer ids = ByteBuffer.allocate(count * 4);
+            ids.asIntBuffer().put(order, 0, count);
+            Files.write(idsFile.toPath(), ids.array());
+            ByteBuffer countBuffer = ByteBuffer.allocate(4);
+            countBuffer.putInt(count).flip();
+            channel.write(countBuffer, 8);
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public int documentCount() {
+        return docCount;
+    }
+
+    @Override
+    public String documentName(int id) {
+        return dictionary.name(dictionaryIds[id]);
+    }
+
+    @Override
+    public int documentId(String name) {
+        return fromDictionaryId(dictionary.id(name));
+    }
+
+    @Override
+    public int dictionaryId(int id) {
+        return dictionaryIds[id];
+    }
+
+    @Override
+    public int fromDictionaryId(int dictionaryId) {
+        return dictionaryId >= 0 && dictionaryId < fromDictionaryIds.length ? fromDictionaryIds[dictionaryId] : -1;
+    }
+
+    @Override
+    public double similarity(int a, int b) {
+        if (a == b) {
+            return 1;
+        }
+        int row = Math.max(a, b);
+        int column = Math.min(a, b);
+        long position = rowOffset(row) + 4L * column;
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getFloat((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    @Override
+    public void close() {
+        // The mappings are released once the matrix is no longer referenced
+    }
+}
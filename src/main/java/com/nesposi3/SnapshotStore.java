@@ -0,0 +1,171 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.CacheUtils;
+import org.jsoup.Connection;
+import org.jsoup.Jsoup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The html of every fetched page, as the server sent it, with the validators the server gave for it.
+ * A cached page is revalidated with one conditional request: the server answers 304 Not Modified with headers
+ * only if the snapshot is current, or with the new page, which is written once, straight from the response body.
+ * Re-crawling an unchanged corpus then only exchanges headers.
+ * An offline store never connects, it serves what is in its folder and fails for anything else.
+ *
+ * Each page is kept as <file name>.html, its validators as lines of a header file beside it:
+ *   ETag: <value>
+ *   Last-Modified: <value>
+ */
+public class SnapshotStore {
+    public static final String HTML_FOLDER_NAME = "storage/html/";
+    public static final String PAGE_SUFFIX = ".html";
+    public static final String META_SUFFIX = ".meta";
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final int NOT_MODIFIED = 304;
+    private static SnapshotStore shared;
+
+    private final String folder;
+    private final boolean offline;
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong servedOffline = new AtomicLong();
+
+    /**
+     * @param folder folder holding the snapshots, created if it does not exist
+     * @param offline serve only the snapshots already in the folder, never connecting
+     */
+    public SnapshotStore(String folder, boolean offline) {
+        this.folder = folder.endsWith("/") ? folder : folder + "/";
+        this.offline = offline;
+        new File(this.folder).mkdirs();
+    }
+
+    /**
+     * @return the store of the document cache, offline if -Dingest.offline=true
+     */
+    public static synchronized SnapshotStore shared() {
+        if (shared == null) {
+            shared = new SnapshotStore(HTML_FOLDER_NAME, Boolean.getBoolean("ingest.offline"));
+        }
+        return shared;
+    }
+
+    /**
+     * Takes in a url and returns its html, downloading it only if there is no snapshot or the server has a newer one
+     * @param url the page to fetch
+     * @return the html of the page
+     * @throws IOException if the page can not be fetched, or is not in an offline store
+     */
+    public String fetch(String url) throws IOException {
+        String name = CacheUtils.generateFileName(url);
+        File page = new File(folder + name + PAGE_SUFFIX);
+        File meta = new File(folder + name + META_SUFFIX);
+        if (offline) {
+            if (!page.exists()) {
+                throw new IOException(page + " is not cached, it can not be fetched offline");
+            }
+            servedOffline.incrementAndGet();
+            return read(page);
+        }
+        Connection connection = Jsoup.connect(url);
+        if (page.exists()) {
+            String etag = null;
+            String lastModified = null;
+            if (meta.exists()) {
+                for (String line : Files.readAllLines(meta.toPath(), StandardCharsets.UTF_8)) {
+                    int colon = line.indexOf(": ");
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String value = line.substring(colon + 2);
+                    if (line.startsWith(ETAG)) {
+                        etag = value;
+                    } else if (line.startsWith(LAST_MODIFIED)) {
+                        lastModified = value;
+                    }
+                }
+            }
+            if (etag == null && lastModified == null) {
+                // Snapshots taken before validators were kept are as new as their file
+                lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                        Instant.ofEpochMilli(page.lastModified()).atOffset(ZoneOffset.UTC));
+            }
+            if (etag != null) {
+                connection.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.header("If-Modified-Since", lastModified);
+            }
+        }
+        Connection.Response response = connection.execute();
+        if (response.statusCode() == NOT_MODIFIED && page.exists()) {
+            notModified.incrementAndGet();
+            return read(page);
+        }
+        // Drop the old validators first, so they are never kept with a newer page
+        Files.deleteIfExists(meta.toPath());
+        File temp = new File(folder + name + PAGE_SUFFIX + ".tmp");
+        Files.write(temp.toPath(), response.bodyAsBytes());
+        Files.move(temp.toPath(), page.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        StringBuilder validators = new StringBuilder();
+        if (response.header(ETAG) != null) {
+            validators.append(ETAG).append(": ").append(response.header(ETAG)).append('\n');
+        }
+        if (response.header(LAST_MODIFIED) != null) {
+            validators.append(LAST_MODIFIED).append(": ").append(response.header(LAST_MODIFIED)).append('\n');
+        }
+        if (validators.length() > 0) {
+            Files.write(meta.toPath(), validators.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        downloaded.incrementAndGet();
+        return response.body();
+    }
+
+    private static String read(File page) throws IOException {
+        return new String(Files.readAllBytes(page.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return whether the store never connects
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * @return pages downloaded because there was no snapshot or the server had a newer one
+     */
+    public long downloaded() {
+        return downloaded.get();
+    }
+
+    /**
+     * @return pages the server confirmed were unchanged, costing only headers
+     */
+    public long notModified() {
+        return notModified.get();
+    }
+
+    /**
+     * @return pages served by an offline store
+     */
+    public long servedOffline() {
+        return servedOffline.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshots: " + downloaded() + " downloaded, " + notModified() + " not modified, "
+                + servedOffline() + " offline";
+    }
+}
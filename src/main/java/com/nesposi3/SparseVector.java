@@ -0,0 +1,75 @@
+package com.nesposi3;
+
+import java.util.Arrays;
+
+/**
+ * A document as a sparse vector, word hashes in ascending order with one weight each
+ */
+public class SparseVector {
+    public final long[] terms;
+    public final float[] weights;
+
+    /**
+     * @param terms word hashes, ascending
+     * @param weights weight of each word
+     */
+    public SparseVector(long[] terms, float[] weights) {
+        if (terms.length != weights.length) {
+            throw new IllegalArgumentException("Got " + terms.length + " terms but " + weights.length + " weights");
+        }
+        this.terms = terms;
+        this.weights = weights;
+    }
+
+    /**
+     * Builds the unit length tf-idf vector of a document
+     * @param doc the document's tree
+     * @param dfIndex document frequencies of the corpus
+     * @return the normalized vector, all zero if no word of the document is rare enough to weigh anything
+     */
+    public static SparseVector tfIdf(BTree doc, DocumentFrequencyIndex dfIndex) {
+        int numDocs = dfIndex.documentCount();
+        double totalWords = doc.totalWordCount();
+        long[] terms = new long[doc.totalNumKeys()];
+        double[] weights = new double[terms.length];
+        double norm = 0;
+        int n = 0;
+        BTreeCursor cursor = doc.cursor();
+        while (cursor.next()) {
+            if (cursor.frequency() == 0) {
+                continue;
+            }
+            terms[n] = cursor.key();
+            weights[n] = cursor.frequency() / totalWords * dfIndex.idf(terms[n], numDocs);
+            norm += weights[n] * weights[n];
+            n++;
+        }
+        norm = Math.sqrt(norm);
+        float[] normalized = new float[n];
+        for (int i = 0; i < n; i++) {
+            normalized[i] = norm == 0 ? 0 : (float) (weights[i] / norm);
+        }
+        return new SparseVector(Arrays.copyOf(terms, n), normalized);
+    }
+
+    /**
+     * Sparse dot product, walking both term lists in lockstep
+     * @param other the vector to multiply with
+     * @return the dot product, the cosine similarity when both vectors are normalized
+     */
+    public double dot(SparseVector other) {
+        double total = 0;
+        int i = 0;
+        int j = 0;
+        while (i < terms.length && j < other.terms.length) {
+            if (terms[i] < other.terms[j]) {
+                i++;
+            } else if (terms[i] > other.terms[j]) {
+                j++;
+            } else {
+                total += (double) weights[i++] * other.weights[j++];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,52 @@
+package com.nesposi3;
+
+/**
+ * Turns a word into the 64 bit key it is stored under in a document's BTree.
+ * Every tree records the id of the hasher its keys came from, trees are only comparable when the ids match.
+ */
+public interface TermHasher {
+    // The lower 64 bits of MD5, what every tree was hashed with before trees recorded a hasher
+    int MD5 = 0;
+    // xxHash64 of the word's UTF-16 code units
+    int XXHASH64 = 1;
+
+    /**
+     * Hashes the characters [start, end) of text, without copying them
+     * @param text the text holding the word
+     * @param start index of the word's first character
+     * @param end index after the word's last character
+     * @return the word's key
+     */
+    long hash(CharSequence text, int start, int end);
+
+    /**
+     * @return the id recorded in the header of trees hashed with this hasher
+     */
+    int id();
+
+    default long hash(CharSequence word) {
+        return hash(word, 0, word.length());
+    }
+
+    /**
+     * @param id a hasher id from a tree header
+     * @return the hasher with that id
+     */
+    static TermHasher forId(int id) {
+        switch (id) {
+            case MD5:
+                return Md5TermHasher.INSTANCE;
+            case XXHASH64:
+                return XxHash64TermHasher.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown term hasher " + id);
+        }
+    }
+
+    /**
+     * @return the hasher new corpora are built with, xxHash64 unless the terms.hasher property names another
+     */
+    static TermHasher defaultHasher() {
+        return "md5".equalsIgnoreCase(System.getProperty("terms.hasher")) ? Md5TermHasher.INSTANCE : XxHash64TermHasher.INSTANCE;
+    }
+}
@@ -1,44 +1,71 @@
 package com.nesposi3.Utils;
 
-import com.nesposi3.BTree;
-
-import java.io.File;
-import java.io.IOException;
-
 public class BTreeUtils {
     public static final String BTREE_FOLDER_NAME ="storage/btrees/";
-    public static final long NULL = -1;
+    // Degree and page size given to new trees, existing trees record their own in their header
     public static final int T = 3;
-    public static final int K = (2*T)-1;
-    public static final int NUM_CHILDREN = K+1;
-    public static final int ADDRESS_SIZE = 8;
     public static final int BLOCK_SIZE = 512;
-    public static final int CACHE_MAX_SIZE = 100;
+    // Fraction of each node filled by BTree.bulkLoad unless told otherwise
+    public static final double DEFAULT_FILL_FACTOR = 1.0;
+    // Default memory budget of the shared buffer pool, overridden by the btree.pool.bytes property
+    public static final long POOL_BUDGET_BYTES = 16L * 1024 * 1024;
 
     /**
-     * Converts a Byte object array to a primitive byte array
-     * @param objectBytes Byte object array to convert
-     * @return the primitve byte array representing the object Byte array
+     * Sorts keys ascending, moving each value along with its key
+     * @param keys keys to sort in place
+     * @param values values to reorder in place, same length as keys
      */
-    public static byte[] toPrimitiveBytes(Byte[] objectBytes){
-        byte[] bytes = new byte[objectBytes.length];
-        for (int i = 0; i <objectBytes.length ; i++) {
-            bytes[i] = objectBytes[i];
-        }
-        return bytes;
+    public static void sortParallel(long[] keys, int[] values) {
+        sortParallel(keys, values, 0, keys.length - 1);
     }
 
-    /**
-     * Converts a byte primitive array to a Byte object array
-     * @param primBytes byte primitive array to voncert
-     * @return the Byte object array representing the primitive byte array
-     */
-    public static Byte[] fromPrimitiveBytes(byte[] primBytes){
-        Byte[] bytes = new Byte[primBytes.length];
-        for (int i = 0; i < primBytes.length ; i++) {
-            bytes[i] = primBytes[i];
-
+    static void sortParallel(long[] keys, int[] values, int low, int high) {
+        while (low < high) {
+            if (high - low < 16) {
+                // Insertion sort for short ranges
+                for (int i = low + 1; i <= high; i++) {
+                    long key = keys[i];
+                    int value = values[i];
+                    int j = i - 1;
+                    while (j >= low && keys[j] > key) {
+                        keys[j + 1] = keys[j];
+                        values[j + 1] = values[j];
+                        j--;
+                    }
+                    keys[j + 1] = key;
+                    values[j + 1] = value;
+                }
+                return;
+            }
+            long pivot = keys[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    int value = values[i];
+                    values[i] = values[j];
+                    values[j] = value;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller half and loop on the larger one
+            if (j - low < high - i) {
+                sortParallel(keys, values, low, j);
+                low = i;
+            } else {
+                sortParallel(keys, values, i, high);
+                high = j;
+            }
         }
-        return bytes;
     }
 }
@@ -1,28 +1,30 @@
 package com.nesposi3.Utils;
 
 import com.nesposi3.BTree;
-import org.jsoup.Connection;
+import com.nesposi3.BTreeCursor;
+import com.nesposi3.DocumentDictionary;
+import com.nesposi3.DocumentFrequencyIndex;
+import com.nesposi3.DocumentTokenizer;
+import com.nesposi3.IngestPipeline;
+import com.nesposi3.InvertedIndex;
+import com.nesposi3.SnapshotStore;
+import com.nesposi3.TermHasher;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class CacheUtils {
     public static final String DIRECTORY_NAME = "storage/btrees/";
     public final static String BASE_URI = "https://en.wikipedia.org";
     public static final String URL_BEGINNING = "httpsenwikipediaorgwiki";
+    // One word counter per ingesting thread, drained after every document so its table is reused
+    private static final ThreadLocal<LongIntCounter> COUNTERS = ThreadLocal.withInitial(LongIntCounter::new);
     /**
      * Removes special characters from the input string
      *
@@ -36,105 +38,145 @@ public class CacheUtils {
 
     /**
      * Goes through control file and adds files to cache based on links from those files
+     * Pages are fetched, parsed, counted and built concurrently by an IngestPipeline, see IngestPipeline.Config
      *
      * @throws IOException
-     * @throws ParseException
      */
-    public static void initialize() throws IOException, ParseException {
-        File links = new File("links.txt");
-        Scanner file = new Scanner(links);
-        //This pattern excludes all files, special wikipedia pages, and disambiguation pages
-        Pattern urlPattern = Pattern.compile("\\/wiki\\/((?!((Wikipedia:)|(File:)|(Help:))).)*(?<!(_\\(disambiguation\\)))");
+    public static void initialize() throws IOException {
+        initialize(new IngestPipeline.Config());
+    }
+
+    /**
+     * Goes through control file and adds files to cache based on links from those files
+     *
+     * @param config threads and queue sizes of the pipeline, and whether to load pages only from storage/html/
+     * @throws IOException
+     */
+    public static void initialize(IngestPipeline.Config config) throws IOException {
+        List<String> seeds = new ArrayList<>();
+        Scanner file = new Scanner(new File("links.txt"));
         while (file.hasNextLine()) {
-            String line = file.nextLine();
-            Document doc = (getWebsiteDocument(line));
-            Elements linkElements = doc.select("a");
-            int numLinks = 0;
-            int i = 0;
-            writeDocToBtree(generateFileName(line),doc);
-            while (numLinks < 10 && i < linkElements.size()) {
-                Element e = linkElements.get(i);
-                i++;
-                String link = (e.attr("href"));
-                Matcher m = urlPattern.matcher(link);
-                if (m.matches()) {
-                    numLinks++;
-                    String flink = BASE_URI + (e.attr("href"));
-                    Document linkedDoc = getWebsiteDocument(flink);
-                    writeDocToBtree(generateFileName(flink),linkedDoc);
-                }
-            }
+            seeds.add(file.nextLine());
         }
+        file.close();
+        IngestPipeline pipeline = new IngestPipeline(config);
+        pipeline.run(seeds);
+        System.out.print(pipeline.report());
+        // Index the finished cache for candidate retrieval
+        InvertedIndex.build(DIRECTORY_NAME, InvertedIndex.INDEX_FILE_NAME);
     }
 
     /**
-     * Takes in a url, creates and stores an html file from the url
-     * Checks when files stored in cache were last updated, if later than web, redownload
+     * Takes in a url and returns the page, from the html cache if the server confirms it has not changed
      *
      * @param url The url for the website to be downloaded
      * @return The jsoup Document created by the method
      * @throws IOException
-     * @throws ParseException
      */
-    public static Document getWebsiteDocument(String url) throws IOException, ParseException {
-        String fileName = generateFileName(url);
-        File f = new File("storage/html/" + fileName + ".html");
-        if (f.exists()) {
-            //file exists, check when local file last modified
-            long localMod = f.lastModified();
-            // Check when website was last modified
-            Connection.Response conn = Jsoup.connect(url).execute();
-            String dString = conn.header("Last-Modified");
-            // Pattern based on format of HTTP last modified header
-            SimpleDateFormat format = new SimpleDateFormat("EEE',' dd MMM YYYY HH':'mm':'ss zz");
-            Date date = format.parse(dString);
-            long webMod = date.getTime();
-            // If website modified after local, get page again
-            if (webMod > localMod) {
-                f.delete();
-                f.createNewFile();
-                Document doc = Jsoup.connect(url).get();
-                String text = doc.outerHtml();
-                BufferedWriter writer = new BufferedWriter(new FileWriter(f));
-                writer.write(text);
-                writer.close();
-                return doc;
-            } else {
-                return Jsoup.parse(f, "UTF-8", "");
-            }
-        } else {
-            f.createNewFile();
-            //file doesn't exist, download
-            Document doc = Jsoup.connect(url).get();
-            String text = doc.outerHtml();
-            BufferedWriter writer = new BufferedWriter(new FileWriter(f));
-            writer.write(text);
-            writer.close();
-            return doc;
-        }
+    public static Document getWebsiteDocument(String url) throws IOException {
+        // The URL as base URI makes it the document's location, which writeDocToBtree records
+        return Jsoup.parse(getWebsiteHtml(url), url);
+    }
+
+    /**
+     * Takes in a url and returns its html without parsing it, see SnapshotStore
+     *
+     * @param url The url for the website to be downloaded
+     * @return The html of the page, as it is stored in the cache
+     * @throws IOException
+     */
+    public static String getWebsiteHtml(String url) throws IOException {
+        return SnapshotStore.shared().fetch(url);
     }
 
+    /**
+     * Builds the BTree for a document and updates the document frequency index, the caller is responsible for closing it
+     * The document is given a DocumentDictionary id, along with its URL if it was fetched from one
+     * @param name file name of the tree
+     * @param document the parsed document
+     * @return the open BTree
+     * @throws IOException
+     */
     public static BTree writeDocToBtree(String name,Document document) throws IOException {
+        // Open the index first, if it has to be rebuilt it must not already count this version of the document
+        try (DocumentFrequencyIndex dfIndex = new DocumentFrequencyIndex()) {
+            return writeDocToBtree(name, document, dfIndex);
+        }
+    }
 
-        BTree bTree = new BTree(DIRECTORY_NAME+name);
-        //Maps word hash with frequencies
-        HashMap<Long,Integer> map = new HashMap<>();
-        String content = document.text();
-        String delimiters ="[ .!?@\\[\\]/()\\-—,\"\']";
-        String[] words = content.split(delimiters);
-        for (int i = 0; i <words.length ; i++) {
-            // Use the 64 bit hashing function
-            Long hashedWord = ClusteringUtils.stringHash64(words[i]);
-            //Check if word exists, if yes, increment value
-            if(map.containsKey(hashedWord)){
-                map.put(hashedWord,map.get(hashedWord)+1);
-            }else{
-                map.put(hashedWord,1);
+    /**
+     * Builds the BTree for a document and updates an already open document frequency index,
+     * the caller is responsible for closing the tree
+     * @param name file name of the tree
+     * @param document the parsed document
+     * @param dfIndex the open document frequency index
+     * @return the open BTree
+     * @throws IOException
+     */
+    public static BTree writeDocToBtree(String name, Document document, DocumentFrequencyIndex dfIndex) throws IOException {
+        // Hash the way the rest of the corpus was hashed
+        TermHasher hasher = dfIndex.termHasher();
+        //Counts word hashes, filled straight from the text nodes
+        LongIntCounter counter = COUNTERS.get();
+        DocumentTokenizer.count(document, hasher, counter);
+        // Sort once and build the tree bottom up in a single sequential write
+        long[] keys = new long[counter.size()];
+        int[] freqs = new int[keys.length];
+        counter.drainSorted(keys, freqs);
+        return writeTermsToBtree(name, document.location(), keys, freqs, dfIndex);
+    }
+
+    /**
+     * Builds the BTree for a document whose words are already counted and updates the document frequency index,
+     * the caller is responsible for closing it. Trees of different documents can be built concurrently
+     * @param name file name of the tree
+     * @param url the URL the document was fetched from, empty if it has none
+     * @param keys the document's word hashes, ascending, hashed with the index's hasher
+     * @param freqs the frequency of each word in keys
+     * @param dfIndex the open document frequency index
+     * @return the open BTree
+     * @throws IOException
+     */
+    public static BTree writeTermsToBtree(String name, String url, long[] keys, int[] freqs,
+                                          DocumentFrequencyIndex dfIndex) throws IOException {
+        DocumentDictionary dictionary = DocumentDictionary.shared();
+        if (!url.isEmpty() && generateFileName(url).equals(name)) {
+            dictionary.addUrl(url);
+        } else {
+            dictionary.add(name);
+        }
+        long[] oldKeys = readTerms(DIRECTORY_NAME + name);
+        BTree tree = BTree.bulkLoad(DIRECTORY_NAME + name, keys, freqs, dfIndex.termHasher());
+        // The index is one tree shared by every builder
+        synchronized (dfIndex) {
+            dfIndex.replaceDocument(oldKeys, keys);
+        }
+        return tree;
+    }
+
+    /**
+     * @param fileName path of a document tree
+     * @return the sorted words the document contains, empty if there is no such tree
+     * @throws IOException
+     */
+    private static long[] readTerms(String fileName) throws IOException {
+        File f = new File(fileName);
+        if (!f.exists() || f.length() == 0) {
+            return new long[0];
+        }
+        // Read through the buffer pool, not a mapping, since the file is rewritten right after. A mapping is only
+        // released on garbage collection, and a file that is still mapped can not be truncated on every platform
+        try (BTree old = new BTree(fileName)) {
+            long[] terms = new long[old.totalNumKeys()];
+            int n = 0;
+            BTreeCursor cursor = old.cursor();
+            while (cursor.next()) {
+                if (cursor.frequency() > 0) {
+                    terms[n++] = cursor.key();
+                }
             }
+            return Arrays.copyOf(terms, n);
         }
-        // Add vals to bTree
-        map.forEach(bTree::insert);
-        return bTree;
     }
     public static String titleFromFileName(String name){
         return  name.split(URL_BEGINNING)[1];
@@ -2,27 +2,35 @@ package com.nesposi3.Utils;
 
 import com.nesposi3.BTree;
 import com.nesposi3.Cluster;
+import com.nesposi3.ClusterCatalog;
+import com.nesposi3.ClusterModel;
+import com.nesposi3.DocumentDictionary;
+import com.nesposi3.DocumentSimilarity;
+import com.nesposi3.DocumentVectorStore;
+import com.nesposi3.InvertedIndex;
+import com.nesposi3.KMedoids;
+import com.nesposi3.ScoredDocument;
+import com.nesposi3.SimilarityMatrix;
 import org.jsoup.nodes.Document;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
 import java.text.ParseException;
-import java.util.HashMap;
 
-import static com.nesposi3.Utils.BTreeUtils.BTREE_FOLDER_NAME;
 import static org.apache.commons.codec.digest.DigestUtils.md5;
 
 public class ClusteringUtils {
     private static final int NUM_CLUSTERS= 10;
-    private static final int SWAP_ITERATION = 50;
-    private static final String CLUSTER_LOCATION = "storage/clusters/";
+    private static final long CLUSTER_SEED = 365;
+    // Cost per member growth past the baseline, 0.2 meaning 20%, at which assignNewDocuments re-chooses a medioid
+    private static final double DRIFT_THRESHOLD = 0.2;
+    // Read similarities from the precomputed matrix instead of the vectors, unless -Dclustering.matrix=false
+    private static final boolean USE_SIMILARITY_MATRIX =
+            Boolean.parseBoolean(System.getProperty("clustering.matrix", "true"));
     /**
      * Convert a string into a long (64 bit) hash code
      * Takes the lower 64 bits of a md5 hash
+     * Only corpora cached before trees recorded their hasher use this, see TermHasher
      * @param input
      * @return
      */
@@ -37,141 +45,204 @@ public class ClusteringUtils {
     }
 
     /**
-     * This function reforms a k-medioids analysis on the cached btrees
+     * This function reforms a k-medioids analysis on the cached btrees, with the default number of clusters and seed
      * @throws IOException
      */
     public static void kMedioids()throws IOException {
-        HashMap<BTree, String> bTreeMap = new HashMap<>();
-        // Get all btrees from the folder, add them to the map with String name
-        File dir = new File(BTREE_FOLDER_NAME);
-        File[] files = dir.listFiles();
-        Cluster[] clusters = new Cluster[NUM_CLUSTERS];
-        for (int i = 0; i < files.length ; i++) {
-            BTree tree = new BTree(BTREE_FOLDER_NAME  + files[i].getName());
-            bTreeMap.put(tree,files[i].getName());
-        }
+        kMedioids(NUM_CLUSTERS, CLUSTER_SEED);
+    }
 
-        // create blank cluster with given id
-        for (int i = 0; i <NUM_CLUSTERS ; i++) {
-            Cluster cluster = new Cluster(i);
-            clusters[i] = cluster;
+    /**
+     * This function reforms a k-medioids analysis on the cached btrees and replaces the clusters on disk
+     * Similarities come from the tf-idf vectors of the document vector store, read from the precomputed
+     * similarity matrix unless the clustering.matrix property is false
+     * @param k the number of clusters
+     * @param seed seed of the clustering, equal seeds over the same corpus give equal clusters
+     * @throws IOException
+     */
+    public static void kMedioids(int k, long seed)throws IOException {
+        try (DocumentVectorStore vectors = DocumentVectorStore.open();
+             SimilarityMatrix matrix = USE_SIMILARITY_MATRIX ? SimilarityMatrix.open(vectors) : null) {
+            DocumentSimilarity store = matrix != null ? matrix : vectors;
+            KMedoids.Result result = new KMedoids(store, k, seed).run();
+            DocumentDictionary dictionary = vectors.getDictionary();
+            Cluster[] clusters = new Cluster[result.medoids.length];
+            for (int i = 0; i < clusters.length; i++) {
+                clusters[i] = new Cluster(i);
+                clusters[i].setMedioid(store.dictionaryId(result.medoids[i]));
+            }
+            for (int doc = 0; doc < result.assignment.length; doc++) {
+                int medioid = result.medoids[result.assignment[doc]];
+                if (doc != medioid) {
+                    Cluster cluster = clusters[result.assignment[doc]];
+                    cluster.addMember(store.dictionaryId(doc));
+                    cluster.cost += 1 - store.similarity(doc, medioid);
+                }
+            }
+            for (Cluster cluster : clusters) {
+                cluster.resetBaseline();
+            }
+            // The whole catalog is replaced, so clusters left from an earlier run with a larger k are gone too
+            ClusterCatalog.write(ClusterCatalog.CATALOG_FILE_NAME, clusters);
+            for (Cluster cluster : clusters) {
+                System.out.println("Final: "+cluster.toString(dictionary));
+            }
+            System.out.println("Total distance: " + result.cost);
         }
+    }
 
-        // Assign initial medioids to the clusters
-        for (int i = 0; i <NUM_CLUSTERS ; i++) {
-            clusters[i].setMedioid(files[i*10].getName());
-            System.out.println("Initital Mediod: " + files[i*10].getName() );
+    /**
+     * Adds documents cached since the last clustering to the cluster of their nearest medioid, without reclustering.
+     * The catalog is only rewritten if a document was added. A cluster whose cost per member drifted more than
+     * DRIFT_THRESHOLD past its baseline has its medioid chosen again among its own members
+     * @return the number of documents assigned
+     * @throws IOException
+     */
+    public static int assignNewDocuments() throws IOException {
+        ClusterCatalog catalog = ClusterCatalog.open();
+        if (catalog == null || catalog.clusterCount() == 0) {
+            // Nothing to add to, cluster from scratch
+            kMedioids();
+            return 0;
         }
-        // At every medioid, add some members to it based on who is the closest
-        for (int i = 0; i <clusters.length ; i++) {
-            Cluster cluster = clusters[i];
-            BTree medioid = new BTree(BTREE_FOLDER_NAME+cluster.medioid);
-            int numMembers = 0;
-            while(numMembers<NUM_CLUSTERS){
-                BTree closest = null;
-                double closestValue = Double.MIN_VALUE;
-                for(BTree x:bTreeMap.keySet()){
-                    double similarity = x.cosineSimilarity(medioid);
-                    if(similarity > closestValue){
-                        closestValue = similarity;
-                        closest = x;
-                    }
+        Cluster[] clusters = catalog.clusters();
+        try (DocumentVectorStore vectors = DocumentVectorStore.open();
+             SimilarityMatrix matrix = USE_SIMILARITY_MATRIX ? SimilarityMatrix.open(vectors) : null) {
+            DocumentSimilarity store = matrix != null ? matrix : vectors;
+            // Indexed by dictionary id, opening the store gave every cached document one
+            boolean[] clustered = new boolean[vectors.getDictionary().size()];
+            for (Cluster cluster : clusters) {
+                clustered[cluster.getMedioid()] = true;
+                for (int i = 0; i < cluster.numMembers(); i++) {
+                    clustered[cluster.getMember(i)] = true;
                 }
-                cluster.addMember(bTreeMap.get(closest));
-                System.out.println(bTreeMap.get(closest));
-                numMembers++;
-                bTreeMap.remove(closest);
             }
-
-        }
-
-        // Try to swap and make total cost for n iterations
-        for (int i = 0; i < clusters.length; i++) {
-            Cluster currentCluster = clusters[i];
-            String[] members = currentCluster.getMembers();
-            double totalcost=0;
-            BTree medtree =  new BTree(BTREE_FOLDER_NAME + currentCluster.getMedioid());
-            for(String member:members){
-                BTree tree = new BTree(BTREE_FOLDER_NAME + member);
-                totalcost += medtree.cosineSimilarity(tree);
+            int[] medioids = new int[clusters.length];
+            for (int i = 0; i < clusters.length; i++) {
+                medioids[i] = store.fromDictionaryId(clusters[i].getMedioid());
             }
-            int j = 0;
-            while(j<SWAP_ITERATION && j<members.length){
-                double trialCost = 0;
-                BTree newMed = new BTree(BTREE_FOLDER_NAME + members[j]);
-                for (String member: members) {
-                    BTree tree = new BTree(BTREE_FOLDER_NAME + member);
-                    trialCost += newMed.cosineSimilarity(tree);
+            boolean[] changed = new boolean[clusters.length];
+            int assigned = 0;
+            for (int doc = 0; doc < store.documentCount(); doc++) {
+                int id = store.dictionaryId(doc);
+                if (clustered[id]) {
+                    continue;
                 }
-                if(trialCost<totalcost){
-                    String oldMedioid = currentCluster.getMedioid();
-                    currentCluster.setMedioid(members[j]);
-                    currentCluster.removeMember(members[j]);
-                    currentCluster.addMember(oldMedioid);
+                int closest = -1;
+                double closestDistance = Double.MAX_VALUE;
+                for (int i = 0; i < clusters.length; i++) {
+                    if (medioids[i] < 0) {
+                        continue;
+                    }
+                    double distance = 1 - store.similarity(doc, medioids[i]);
+                    if (distance < closestDistance) {
+                        closestDistance = distance;
+                        closest = i;
+                    }
+                }
+                if (closest < 0) {
+                    continue;
                 }
-                j++;
+                clusters[closest].addMember(id);
+                clusters[closest].cost += closestDistance;
+                changed[closest] = true;
+                assigned++;
+            }
+            for (int i = 0; i < clusters.length; i++) {
+                if (changed[i] && clusters[i].drift() > DRIFT_THRESHOLD) {
+                    System.out.println("Cluster " + clusters[i].getClusterId() + " drifted by " + clusters[i].drift() + ", choosing its medioid again");
+                    reswap(clusters[i], store);
+                }
+            }
+            if (assigned > 0) {
+                ClusterCatalog.write(ClusterCatalog.CATALOG_FILE_NAME, clusters);
             }
-            currentCluster.writeToDisk();
-            System.out.println("Final: "+currentCluster.toString());
+            return assigned;
         }
     }
-    public static String findClosestTree(String url)throws ParseException, IOException{
-        HashMap<BTree, String> bTreeMap = new HashMap<>();
 
-        // Get all btrees from the folder, add them to the map with String name
-        File dir = new File(BTREE_FOLDER_NAME);
-        File[] files = dir.listFiles();
-        for (int i = 0; i < files.length ; i++) {
-            BTree tree = new BTree(BTREE_FOLDER_NAME  + files[i].getName());
-            bTreeMap.put(tree,files[i].getName());
+    /**
+     * Makes the member with the least total distance to the rest of the cluster its medioid, and resets the baseline
+     */
+    private static void reswap(Cluster cluster, DocumentSimilarity store) {
+        // Index 0 is the medioid, the members follow
+        int[] ids = new int[cluster.numMembers() + 1];
+        ids[0] = store.fromDictionaryId(cluster.getMedioid());
+        for (int i = 0; i < cluster.numMembers(); i++) {
+            ids[i + 1] = store.fromDictionaryId(cluster.getMember(i));
+        }
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < 0) {
+                continue;
+            }
+            double cost = 0;
+            for (int j = 0; j < ids.length && cost < bestCost; j++) {
+                if (ids[j] >= 0) {
+                    cost += 1 - store.similarity(ids[i], ids[j]);
+                }
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = i;
+            }
+        }
+        if (best != 0) {
+            int oldMedioid = cluster.getMedioid();
+            int newMedioid = cluster.getMember(best - 1);
+            cluster.setMedioid(newMedioid);
+            cluster.removeMember(newMedioid);
+            cluster.addMember(oldMedioid);
         }
+        cluster.cost = bestCost;
+        cluster.resetBaseline();
+    }
 
-        Document doc = CacheUtils.getWebsiteDocument(url);
-        BTree newTree = CacheUtils.writeDocToBtree(CacheUtils.generateFileName(url),doc);
-        return SimilarityUtils.findClosest(newTree,bTreeMap);
+    /**
+     * Finds the cached document whose word frequencies are most similar to the page at url.
+     * Only documents sharing a word with the page are scored, through the inverted index
+     * @param url the page to compare
+     * @return file name of the closest document, empty if no document shares a word with the page
+     */
+    public static String findClosestTree(String url)throws ParseException, IOException{
+        return findClosestIndexed(url, InvertedIndex.Weighting.FREQUENCY);
     }
-    public static Cluster findClosestCluster(String url){
-        File dir = new File(CLUSTER_LOCATION);
-        File[] files = dir.listFiles();
-        Cluster[] clusters = new Cluster[files.length];
+    /**
+     * Ranks every cluster by how similar the page at url is to its medioid, using the cached cluster model
+     * @param url the page to compare
+     * @return every cluster with its similarity, most similar first, empty if the page could not be read
+     */
+    public static ClusterModel.Match[] rankClusters(String url){
         try{
             Document doc = CacheUtils.getWebsiteDocument(url);
-            BTree newTree = CacheUtils.writeDocToBtree(CacheUtils.generateFileName(url),doc);
-            double closestNumber = Double.MIN_VALUE;
-            int closestIndex = -1;
-            for (int i = 0; i <files.length ; i++) {
-                Cluster c = new Cluster(Files.readAllBytes(files[i].toPath()));
-                clusters[i] = c;
-                BTree medioid = new BTree(BTREE_FOLDER_NAME + c.medioid);
-                double result = newTree.cosineSimilarity(medioid);
-                System.out.println(c.medioid + result);
-                if(result>closestNumber){
-                    closestIndex = i;
-                    closestNumber = result;
-                }
+            // Loaded before the page is written, so writing a medioid's page does not reload the model mid query
+            ClusterModel model = ClusterModel.current();
+            try (BTree newTree = CacheUtils.writeDocToBtree(CacheUtils.generateFileName(url),doc,model.getDfIndex())) {
+                return model.rank(newTree);
             }
-            return clusters[closestIndex];
         }catch (IOException e){
             e.printStackTrace();
-            return null;
-        } catch (ParseException e) {
-            return null;
+            return new ClusterModel.Match[0];
         }
     }
+    /**
+     * Finds the cached document most similar to the page at url by tf-idf cosine similarity
+     * @param url the page to compare
+     * @return file name of the closest document, empty if no document shares a word with the page
+     */
     public static String findClosestTfIdf(String url)throws ParseException, IOException{
-        HashMap<BTree, String> bTreeMap = new HashMap<>();
-
-        // Get all btrees from the folder, add them to the map with String name
-        File dir = new File(BTREE_FOLDER_NAME);
-        File[] files = dir.listFiles();
-        for (int i = 0; i < files.length ; i++) {
-            BTree tree = new BTree(BTREE_FOLDER_NAME  + files[i].getName());
-            bTreeMap.put(tree,files[i].getName());
-        }
+        return findClosestIndexed(url, InvertedIndex.Weighting.TF_IDF);
+    }
 
+    private static String findClosestIndexed(String url, InvertedIndex.Weighting weighting) throws IOException {
+        String name = CacheUtils.generateFileName(url);
         Document doc = CacheUtils.getWebsiteDocument(url);
-        BTree newTree = CacheUtils.writeDocToBtree(CacheUtils.generateFileName(url),doc);
-        return SimilarityUtils.findMostSimilarTfIdf(newTree,bTreeMap);
+        try (BTree newTree = CacheUtils.writeDocToBtree(name,doc,ClusterModel.current().getDfIndex());
+             InvertedIndex index = InvertedIndex.open()) {
+            ScoredDocument[] closest = index.topK(newTree, 1, weighting, name);
+            return closest.length > 0 ? closest[0].name : "";
+        }
     }
 
 }
@@ -0,0 +1,153 @@
+package com.nesposi3.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Counts long keys in primitive arrays, open addressing with linear probing.
+ * Nothing is boxed and counting an existing key is one probe sequence, so a document's words can be counted
+ * without garbage. clear() and drainSorted() keep the arrays, so one counter can be reused for every document.
+ * Key 0 marks a free slot in the table and is counted on the side.
+ */
+public class LongIntCounter {
+    private static final int MIN_CAPACITY = 16;
+    private long[] keys;
+    private int[] counts;
+    private int mask;
+    private int shift;
+    // Keys in the table, not counting key 0
+    private int size;
+    private int zeroCount;
+    private boolean hasZero;
+
+    public LongIntCounter() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedKeys number of distinct keys to make room for before growing
+     */
+    public LongIntCounter(int expectedKeys) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedKeys * 2 - 1)) << 1));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /**
+     * Fibonacci hashing, the multiply spreads keys whose low bits agree
+     */
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * Adds one to a key's count
+     * @param key the key to count
+     */
+    public void increment(long key) {
+        add(key, 1);
+    }
+
+    /**
+     * Adds to a key's count, starting it at 0 if the key is new
+     * @param key the key to count
+     * @param count amount to add, positive
+     */
+    public void add(long key, int count) {
+        if (key == 0) {
+            hasZero = true;
+            zeroCount += count;
+            return;
+        }
+        int i = slot(key);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                counts[i] += count;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        counts[i] = count;
+        // Keep the table at most half full so probe sequences stay short
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        allocate(keys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = slot(oldKeys[j]);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                counts[i] = oldCounts[j];
+            }
+        }
+    }
+
+    /**
+     * @param key a key
+     * @return its count, 0 if it was never counted
+     */
+    public int get(long key) {
+        if (key == 0) {
+            return zeroCount;
+        }
+        int i = slot(key);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return counts[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of distinct keys counted
+     */
+    public int size() {
+        return hasZero ? size + 1 : size;
+    }
+
+    /**
+     * Forgets every key, keeping the arrays for the next use
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        zeroCount = 0;
+        hasZero = false;
+    }
+
+    /**
+     * Copies every key in ascending order into keysOut, with its count at the same index in countsOut, then clears
+     * @param keysOut receives the keys, at least size() long
+     * @param countsOut receives the counts, at least size() long
+     */
+    public void drainSorted(long[] keysOut, int[] countsOut) {
+        int n = 0;
+        if (hasZero) {
+            keysOut[n] = 0;
+            countsOut[n++] = zeroCount;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                keysOut[n] = keys[i];
+                countsOut[n++] = counts[i];
+            }
+        }
+        BTreeUtils.sortParallel(keysOut, countsOut, 0, n - 1);
+        clear();
+    }
+}
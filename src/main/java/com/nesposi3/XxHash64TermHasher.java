@@ -0,0 +1,95 @@
+package com.nesposi3;
+
+/**
+ * xxHash64, seed 0, over the UTF-16LE bytes of a word.
+ * Characters are read straight from the CharSequence and packed four to a 64 bit lane, so hashing a word
+ * allocates nothing and costs a few multiplies per 16 characters.
+ */
+public class XxHash64TermHasher implements TermHasher {
+    public static final XxHash64TermHasher INSTANCE = new XxHash64TermHasher();
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64TermHasher() {
+    }
+
+    @Override
+    public long hash(CharSequence text, int start, int end) {
+        int length = end - start;
+        int i = start;
+        long h;
+        // 32 byte stripes, 16 characters, into four accumulators
+        if (length >= 16) {
+            long v1 = PRIME1 + PRIME2;
+            long v2 = PRIME2;
+            long v3 = 0;
+            long v4 = -PRIME1;
+            int limit = end - 16;
+            do {
+                v1 = round(v1, lane(text, i));
+                v2 = round(v2, lane(text, i + 4));
+                v3 = round(v3, lane(text, i + 8));
+                v4 = round(v4, lane(text, i + 12));
+                i += 16;
+            } while (i <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = PRIME5;
+        }
+        h += length * 2L;
+        for (; i + 4 <= end; i += 4) {
+            h ^= round(0, lane(text, i));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (i + 2 <= end) {
+            h ^= (text.charAt(i) | (long) text.charAt(i + 1) << 16) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            i += 2;
+        }
+        if (i < end) {
+            // A single character is its two bytes, low byte first
+            char c = text.charAt(i);
+            h ^= (c & 0xff) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            h ^= (c >>> 8) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * @return the four characters at i as a little endian 64 bit lane
+     */
+    private static long lane(CharSequence text, int i) {
+        return text.charAt(i) | (long) text.charAt(i + 1) << 16 | (long) text.charAt(i + 2) << 32
+                | (long) text.charAt(i + 3) << 48;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long merge(long h, long v) {
+        h ^= round(0, v);
+        return h * PRIME1 + PRIME4;
+    }
+
+    @Override
+    public int id() {
+        return XXHASH64;
+    }
+}